@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2026, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.gallery3d.common;
+
+import com.android.gallery3d.common.BlobCache.BlobReader;
+import com.android.gallery3d.common.BlobCache.LookupRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// JMH benchmarks of BlobCache on a plain JVM (see README). Every state keeps
+// its cache files in a fresh temporary directory.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BlobCacheBenchmark {
+    private static final int VERSION = 1;
+
+    // Returns the region size that holds count blobs of the given size.
+    static int regionBytes(int count, int blobSize) {
+        return 4 + count * (20 + blobSize) + blobSize;
+    }
+
+    static String tempPath() throws IOException {
+        File dir = Files.createTempDirectory("blobcache-bench").toFile();
+        return new File(dir, "cache").getPath();
+    }
+
+    static void fill(BlobCache cache, int count, byte[] data)
+            throws IOException {
+        for (long key = 1; key <= count; key++) {
+            cache.insert(key, data);
+        }
+    }
+
+    // A cache whose active region holds the keys 1..entries. The keys above
+    // entries are misses.
+    @State(Scope.Benchmark)
+    public static class Filled {
+        @Param({"1000", "10000", "100000"})
+        public int entries;
+
+        @Param({"1024"})
+        public int blobSize;
+
+        BlobCache cache;
+        String path;
+        byte[] data;
+        Random random;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            path = tempPath();
+            data = new byte[blobSize];
+            new Random(1).nextBytes(data);
+            random = new Random(2);
+            // Leave room for the insert benchmark before the region flips.
+            cache = new BlobCache(path, 4 * entries + 2,
+                    regionBytes(2 * entries, blobSize), true, VERSION);
+            fill(cache, entries, data);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            cache.close();
+            BlobCache.deleteFiles(path);
+        }
+
+        long hitKey() {
+            return 1 + random.nextInt(entries);
+        }
+
+        long missKey() {
+            return entries + 1 + random.nextInt(entries);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Request {
+        final LookupRequest request = new LookupRequest();
+    }
+
+    @Benchmark
+    public boolean lookupHit(Filled state, Request request) throws IOException {
+        request.request.key = state.hitKey();
+        return state.cache.lookup(request.request);
+    }
+
+    @Benchmark
+    public boolean lookupHitReader(Filled state, final Blackhole blackhole)
+            throws IOException {
+        return state.cache.lookup(state.hitKey(), new BlobReader() {
+            @Override
+            public boolean read(ByteBuffer blob) {
+                blackhole.consume(blob.get(blob.limit() - 1));
+                return true;
+            }
+        });
+    }
+
+    @Benchmark
+    public boolean lookupMiss(Filled state, Request request)
+            throws IOException {
+        request.request.key = state.missKey();
+        return state.cache.lookup(request.request);
+    }
+
+    // Replaces an existing entry. The region flips from time to time, so
+    // this is the amortized cost of an insert, flips included.
+    @Benchmark
+    public void insert(Filled state) throws IOException {
+        state.cache.insert(state.hitKey(), state.data);
+    }
+
+    // A cache whose active region is full, so that the next insert flips it.
+    @State(Scope.Thread)
+    public static class Full {
+        @Param({"1000", "10000", "100000"})
+        public int entries;
+
+        @Param({"1024"})
+        public int blobSize;
+
+        BlobCache cache;
+        String path;
+        byte[] data;
+
+        @Setup(Level.Trial)
+        public void setUpTrial() throws IOException {
+            path = tempPath();
+            data = new byte[blobSize];
+            new Random(1).nextBytes(data);
+        }
+
+        @Setup(Level.Invocation)
+        public void setUp() throws IOException {
+            cache = new BlobCache(path, 2 * entries,
+                    regionBytes(entries, blobSize), true, VERSION);
+            fill(cache, entries, data);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            cache.close();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDownTrial() {
+            BlobCache.deleteFiles(path);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public void insertFlip(Full state) throws IOException {
+        state.cache.insert(state.entries + 1, state.data);
+    }
+
+    // Cache files written once and closed, then reopened by every invocation.
+    @State(Scope.Benchmark)
+    public static class Closed {
+        @Param({"1000", "10000", "100000"})
+        public int entries;
+
+        @Param({"1024"})
+        public int blobSize;
+
+        String path;
+        int maxEntries;
+        int maxBytes;
+        BlobCache cache;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            path = tempPath();
+            maxEntries = 2 * entries + 2;
+            maxBytes = regionBytes(entries, blobSize);
+            byte[] data = new byte[blobSize];
+            new Random(1).nextBytes(data);
+            BlobCache cache = new BlobCache(path, maxEntries, maxBytes, true,
+                    VERSION);
+            fill(cache, entries, data);
+            cache.close();
+        }
+
+        @TearDown(Level.Invocation)
+        public void closeCache() {
+            if (cache != null) cache.close();
+            cache = null;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            BlobCache.deleteFiles(path);
+        }
+    }
+
+    // Opens an existing cache: loadIndex() and the mapping of the index.
+    @Benchmark
+    public BlobCache reopen(Closed state) throws IOException {
+        state.cache = new BlobCache(state.path, state.maxEntries,
+                state.maxBytes, false, VERSION);
+        return state.cache;
+    }
+}
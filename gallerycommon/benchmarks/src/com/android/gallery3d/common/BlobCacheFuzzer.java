@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2026, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.gallery3d.common;
+
+import com.android.gallery3d.common.BlobCache.LookupRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+// Crash-consistency fuzzer for BlobCache, run on a plain JVM (see README).
+//
+// Each round fills a small cache with blobs whose content is derived from
+// their key, then damages the files in one of these ways:
+//
+// - snapshot: copies the files while the cache is still open, without a
+//   sync, as a crash would leave them;
+// - truncate: cuts the index or a data file at a random length;
+// - corrupt: overwrites a few random bytes of one of the files.
+//
+// The cache is then reopened from the damaged files. Recovery may lose any
+// blob, or reset the whole cache, but a lookup must never return bytes other
+// than the ones inserted for the key. The positional and the windowed read
+// paths must also agree on every indexed entry, and the recovered cache must
+// accept new inserts.
+//
+// Usage: BlobCacheFuzzer [rounds [seed [dir]]]
+public class BlobCacheFuzzer {
+    private static final int VERSION = 1;
+    private static final int KEY_RANGE = 4000;
+
+    private final Random mRandom;
+    private final File mDir;
+    private int mFailures;
+
+    private BlobCacheFuzzer(long seed, File dir) {
+        mRandom = new Random(seed);
+        mDir = dir;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        File dir = args.length > 2 ? new File(args[2])
+                : Files.createTempDirectory("blobcache-fuzz").toFile();
+        BlobCacheFuzzer fuzzer = new BlobCacheFuzzer(seed, dir);
+        for (int i = 0; i < rounds; i++) {
+            fuzzer.runRound(i);
+        }
+        System.out.println(rounds + " rounds, seed " + seed + ": "
+                + fuzzer.mFailures + " failures");
+        if (fuzzer.mFailures != 0) System.exit(1);
+    }
+
+    // The content of the blob of a key: its length and bytes only depend on
+    // the key, so any blob returned for it can be checked.
+    private static byte[] blobOf(long key) {
+        Random random = new Random(key * 0x9E3779B97F4A7C15L);
+        byte[] data = new byte[1 + random.nextInt(6000)];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private void runRound(int round) throws IOException {
+        String path = new File(mDir, "cache").getPath();
+        String copy = new File(mDir, "copy").getPath();
+        BlobCache.deleteFiles(path);
+        BlobCache.deleteFiles(copy);
+
+        int maxEntries = 16 + mRandom.nextInt(500);
+        int maxBytes = 8192 + mRandom.nextInt(1 << 20);
+        BlobCache cache = new BlobCache(path, maxEntries, maxBytes, true,
+                VERSION);
+        if (mRandom.nextBoolean()) {
+            cache.setEvictionPolicy(BlobCache.EVICTION_SECOND_CHANCE);
+        }
+        fill(cache, maxBytes);
+
+        String mode;
+        String target = path;
+        int damage = mRandom.nextInt(3);
+        if (damage == 0) {
+            mode = "snapshot";
+            for (String suffix : new String[] {".idx", ".0", ".1"}) {
+                Files.copy(new File(path + suffix).toPath(),
+                        new File(copy + suffix).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            cache.close();
+            target = copy;
+        } else {
+            cache.close();
+            File file = new File(path + pickSuffix());
+            if (damage == 1) {
+                mode = "truncate " + file.getName();
+                truncate(file);
+            } else {
+                mode = "corrupt " + file.getName();
+                corrupt(file);
+            }
+        }
+
+        BlobCache recovered = new BlobCache(target, maxEntries, maxBytes, false,
+                VERSION);
+        try {
+            check(recovered, "round " + round + " (" + mode + ")");
+            // The recovered cache must keep working.
+            fill(recovered, maxBytes);
+            check(recovered, "round " + round + " (" + mode + ", refilled)");
+        } finally {
+            recovered.close();
+        }
+    }
+
+    private String pickSuffix() {
+        switch (mRandom.nextInt(3)) {
+            case 0: return ".idx";
+            case 1: return ".0";
+            default: return ".1";
+        }
+    }
+
+    // Inserts and clears random keys, with single and batched inserts, until
+    // about two regions' worth of data went in.
+    private void fill(BlobCache cache, int maxBytes) throws IOException {
+        long written = 0;
+        while (written < 2L * maxBytes) {
+            int op = mRandom.nextInt(10);
+            if (op == 0) {
+                cache.clearEntry(1 + mRandom.nextInt(KEY_RANGE));
+            } else if (op == 1) {
+                int count = 1 + mRandom.nextInt(16);
+                long[] keys = new long[count];
+                byte[][] data = new byte[count][];
+                for (int i = 0; i < count; i++) {
+                    keys[i] = 1 + mRandom.nextInt(KEY_RANGE);
+                    data[i] = blobOf(keys[i]);
+                    written += data[i].length;
+                }
+                cache.insert(keys, data, count);
+            } else {
+                long key = 1 + mRandom.nextInt(KEY_RANGE);
+                byte[] data = blobOf(key);
+                if (data.length + 64 > maxBytes) continue;
+                cache.insert(key, data);
+                written += data.length;
+            }
+            if (mRandom.nextInt(8) == 0) cache.lookup(1 + mRandom.nextInt(KEY_RANGE));
+        }
+    }
+
+    private void check(BlobCache cache, String what) throws IOException {
+        int inconsistent = cache.countInconsistentEntries();
+        if (inconsistent != 0) {
+            fail(what + ": " + inconsistent + " entries read differently");
+        }
+        LookupRequest request = new LookupRequest();
+        for (long key = 1; key <= KEY_RANGE; key++) {
+            final byte[] expected = blobOf(key);
+            request.key = key;
+            if (cache.lookup(request) && !ByteBuffer.wrap(expected).equals(
+                    ByteBuffer.wrap(request.buffer, 0, request.length))) {
+                fail(what + ": lookup returned wrong bytes for key " + key);
+            }
+            final boolean[] wrong = new boolean[1];
+            BlobCache.BlobReader reader = blob -> {
+                wrong[0] = !ByteBuffer.wrap(expected).equals(blob);
+                return true;
+            };
+            if (cache.peek(key, reader) && wrong[0]) {
+                fail(what + ": peek returned wrong bytes for key " + key);
+            }
+            if (cache.lookup(key, reader) && wrong[0]) {
+                fail(what + ": reader lookup returned wrong bytes for key "
+                        + key);
+            }
+        }
+    }
+
+    private void truncate(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            if (length > 0) raf.setLength(mRandom.nextInt((int) length));
+        }
+    }
+
+    private void corrupt(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            if (length == 0) return;
+            byte[] one = new byte[1];
+            for (int i = 1 + mRandom.nextInt(8); i > 0; i--) {
+                long position = (long) (mRandom.nextDouble() * length);
+                raf.seek(position);
+                raf.readFully(one);
+                one[0] ^= (byte) (1 + mRandom.nextInt(255));
+                raf.seek(position);
+                raf.write(one);
+            }
+        }
+    }
+
+    private void fail(String message) {
+        mFailures++;
+        System.err.println("FAIL " + message);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2026, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.gallery3d.data;
+
+import com.android.gallery3d.util.GalleryUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// JMH benchmarks of the k-means of LocationClustering on synthetic GPS sets:
+// items around 12 cities with a gaussian spread of about 10 km, a third of
+// them taken again at an earlier spot. baseline() is the k-means
+// LocationClustering used before LocationKMeans, kept here to compare with.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LocationClusteringBenchmark {
+    private static final int CITIES = 12;
+
+    @Param({"2000", "20000", "60000"})
+    public int items;
+
+    private double[] mLat;
+    private double[] mLng;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(1);
+        double[] cityLat = new double[CITIES];
+        double[] cityLng = new double[CITIES];
+        for (int i = 0; i < CITIES; i++) {
+            cityLat[i] = random.nextDouble() * 120 - 60;
+            cityLng[i] = random.nextDouble() * 360 - 180;
+        }
+        mLat = new double[items];
+        mLng = new double[items];
+        for (int i = 0; i < items; i++) {
+            if (i > 0 && random.nextInt(3) == 0) {
+                int spot = random.nextInt(i);
+                mLat[i] = mLat[spot];
+                mLng[i] = mLng[spot];
+            } else {
+                int city = random.nextInt(CITIES);
+                mLat[i] = cityLat[city] + random.nextGaussian() * 0.1;
+                mLng[i] = cityLng[city] + random.nextGaussian() * 0.1;
+            }
+        }
+    }
+
+    @Benchmark
+    public int[] current() {
+        return LocationKMeans.cluster(mLat, mLng, items, new int[1]);
+    }
+
+    @Benchmark
+    public int[] baseline() {
+        int n = items;
+        double[] latRad = new double[n];
+        double[] lngRad = new double[n];
+        for (int i = 0; i < n; i++) {
+            latRad[i] = Math.toRadians(mLat[i]);
+            lngRad[i] = Math.toRadians(mLng[i]);
+        }
+        return baselineKMeans(latRad, lngRad, new int[1]);
+    }
+
+    // The k-means of LocationClustering before LocationKMeans: every k from
+    // 1 to 20, evenly spaced seeds, and a full scan of all the centers for
+    // every item on each iteration.
+    private static int[] baselineKMeans(double[] latRad, double[] lngRad,
+            int[] bestK) {
+        int n = latRad.length;
+        int minK = Math.min(n, 1);
+        int maxK = Math.min(n, 20);
+
+        double[] centerLat = new double[maxK];
+        double[] centerLng = new double[maxK];
+        double[] sumLat = new double[maxK];
+        double[] sumLng = new double[maxK];
+        int[] groupCount = new int[maxK];
+        int[] grouping = new int[n];
+
+        float bestScore = Float.MAX_VALUE;
+        int[] bestGrouping = new int[n];
+        bestK[0] = 1;
+
+        float lastDistance = 0;
+        float totalDistance = 0;
+
+        for (int k = minK; k <= maxK; k++) {
+            int delta = n / k;
+            for (int i = 0; i < k; i++) {
+                centerLat[i] = latRad[i * delta];
+                centerLng[i] = lngRad[i * delta];
+            }
+
+            for (int iter = 0; iter < 30; iter++) {
+                for (int i = 0; i < k; i++) {
+                    sumLat[i] = 0;
+                    sumLng[i] = 0;
+                    groupCount[i] = 0;
+                }
+                totalDistance = 0;
+
+                for (int i = 0; i < n; i++) {
+                    float bestDistance = Float.MAX_VALUE;
+                    int bestIndex = 0;
+                    for (int j = 0; j < k; j++) {
+                        float distance = (float) GalleryUtils.fastDistanceMeters(
+                                latRad[i], lngRad[i], centerLat[j], centerLng[j]);
+                        if (distance < 1) {
+                            distance = 0;
+                        }
+                        if (distance < bestDistance) {
+                            bestDistance = distance;
+                            bestIndex = j;
+                        }
+                    }
+                    grouping[i] = bestIndex;
+                    groupCount[bestIndex]++;
+                    sumLat[bestIndex] += latRad[i];
+                    sumLng[bestIndex] += lngRad[i];
+                    totalDistance += bestDistance;
+                }
+
+                for (int i = 0; i < k; i++) {
+                    if (groupCount[i] > 0) {
+                        centerLat[i] = sumLat[i] / groupCount[i];
+                        centerLng[i] = sumLng[i] / groupCount[i];
+                    }
+                }
+
+                if (totalDistance == 0 || (Math.abs(lastDistance - totalDistance)
+                        / totalDistance) < 0.01f) {
+                    break;
+                }
+                lastDistance = totalDistance;
+            }
+
+            int[] reassign = new int[k];
+            int realK = 0;
+            for (int i = 0; i < k; i++) {
+                if (groupCount[i] > 0) {
+                    reassign[i] = realK++;
+                }
+            }
+
+            float score = totalDistance * (float) Math.sqrt(realK);
+            if (score < bestScore) {
+                bestScore = score;
+                bestK[0] = realK;
+                for (int i = 0; i < n; i++) {
+                    bestGrouping[i] = reassign[grouping[i]];
+                }
+                if (score == 0) {
+                    break;
+                }
+            }
+        }
+        return bestGrouping;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2026, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.gallery3d.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// JMH benchmarks of Path.fromString() on paths that already exist, as when
+// albums are reloaded, from 1 to 8 threads. The Paths are kept alive by the
+// state so that they are looked up rather than created again.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PathBenchmark {
+    @Param({"1000", "100000"})
+    public int paths;
+
+    private String[] mStrings;
+    private Path[] mPaths;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mStrings = new String[paths];
+        mPaths = new Path[paths];
+        for (int i = 0; i < paths; i++) {
+            String type = (i & 1) == 0 ? "image" : "video";
+            mStrings[i] = "/local/" + type + "/item/" + (1000000 + i);
+            mPaths[i] = Path.fromString(mStrings[i]);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Lookups {
+        private final Random mRandom = new Random(Thread.currentThread().getId());
+
+        int next(int n) {
+            return mRandom.nextInt(n);
+        }
+    }
+
+    private Path lookup(Lookups lookups) {
+        return Path.fromString(mStrings[lookups.next(paths)]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Path fromString1(Lookups lookups) {
+        return lookup(lookups);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public Path fromString2(Lookups lookups) {
+        return lookup(lookups);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Path fromString4(Lookups lookups) {
+        return lookup(lookups);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Path fromString8(Lookups lookups) {
+        return lookup(lookups);
+    }
+}
@@ -41,6 +41,21 @@
 // for key. The keys are used directly as index into a hash table, so they
 // should be suitably distributed.
 //
+// Eviction: a hit in the inactive region is copied into the active region,
+// so entries in use survive the next flip. With EVICTION_FLIP (the default)
+// the copy is skipped when the active region is full, and the entry is lost
+// with the rest of the inactive region on the next insert. With
+// EVICTION_SECOND_CHANCE the regions are flipped right away in that case,
+// which makes the scheme behave like a two-generation LRU: only the entries
+// that were not hit since the previous flip are evicted.
+//
+// Durability: by default nothing is synced until syncIndex(), syncAll() or
+// close() is called. setSyncPolicy() enables group commit instead: a
+// background thread syncs the data files and then the index once enough
+// bytes have been appended or the interval has elapsed, so the writer never
+// waits for fsync. Whatever survives a crash is validated on reopen by the
+// header checksum in loadIndex() and by the checksum of each blob on lookup.
+//
 // Each data file stores data for one region. The data file is concatenated
 // blobs followed by the magic number 0xBD248510.
 //
@@ -51,16 +66,33 @@
 // [16] Length of this blob (not including header)
 // [20] Blob
 //
-// Below are the interface for BlobCache. The instance of this class does not
-// support concurrent use by multiple threads.
+// Below are the interface for BlobCache. The instance of this class can be
+// shared by multiple threads without external locking:
+//
+// - Lookups only take the shared side of a read-write lock. They probe the
+//   memory-mapped index with absolute reads and copy blobs out of mapped
+//   windows of the data files or with positional reads, so concurrent
+//   lookups never block each other. A lookup may race
+//   with an insert into the same hash slot; the blob header (key, offset) and
+//   checksum are always verified, so such a race only results in a miss.
+// - Inserts are serialized by a single writer lock and append to the active
+//   data file.
+// - Flipping the regions truncates a data file and clears a hash region, so it
+//   takes the exclusive side of the read-write lock.
 //
 // public BlobCache(String path, int maxEntries, int maxBytes, boolean reset) throws IOException;
 // public void insert(long key, byte[] data) throws IOException;
+// public void insert(long[] keys, byte[][] data, int count) throws IOException;
 // public byte[] lookup(long key) throws IOException;
 // public void lookup(LookupRequest req) throws IOException;
+// public boolean lookup(long key, BlobReader reader) throws IOException;
+// public boolean peek(long key, BlobReader reader) throws IOException;
+// public void setEvictionPolicy(int policy);
+// public Stats getStats();
 // public void close();
 // public void syncIndex();
 // public void syncAll();
+// public void setSyncPolicy(long intervalMs, long dirtyBytes);
 // public static void deleteFiles(String path);
 //
 package com.android.gallery3d.common;
@@ -71,10 +103,16 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.Adler32;
 
 public class BlobCache implements Closeable {
@@ -103,6 +141,26 @@ public class BlobCache implements Closeable {
     private static final int BH_LENGTH = 16;
     private static final int BLOB_HEADER_SIZE = 20;
 
+    // The data files are memory-mapped in windows of this size. A window is
+    // only mapped once the file covers all of it, so it never needs to be
+    // mapped again as the file grows.
+    private static final int DATA_WINDOW_SHIFT = 22;
+    private static final int DATA_WINDOW_SIZE = 1 << DATA_WINDOW_SHIFT;
+    // The windows of all the caches of the process share this budget, so
+    // that together they can't use up a 32-bit address space. Past it the
+    // least recently used window of any cache is dropped.
+    private static final long MAX_MAPPED_BYTES = 256L << 20;
+    // The per-thread lookup buffer doesn't keep larger blobs around.
+    private static final int MAX_SCRATCH_BLOB_SIZE = 1024 * 1024;
+
+    // Batched inserts are coalesced into writes of up to this size.
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    // Drop the whole inactive region when the active region is full.
+    public static final int EVICTION_FLIP = 0;
+    // Flip early to keep inactive-region hits when the active region is full.
+    public static final int EVICTION_SECOND_CHANCE = 1;
+
     private RandomAccessFile mIndexFile;
     private RandomAccessFile mDataFile0;
     private RandomAccessFile mDataFile1;
@@ -114,15 +172,95 @@ public class BlobCache implements Closeable {
     private int mActiveRegion;
     private int mActiveEntries;
     private int mActiveBytes;
+    // The bytes of the active file which have been written out. Batched
+    // inserts update the index before their data is written, so lookups
+    // ignore entries at or beyond this offset.
+    private volatile int mCommittedBytes;
     private int mVersion;
+    private int mInactiveEntries;
+    private volatile int mEvictionPolicy = EVICTION_FLIP;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mInsertCount = new AtomicLong();
+    private final AtomicLong mPromotionCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+    private final AtomicLong mFlipCount = new AtomicLong();
 
     private RandomAccessFile mActiveDataFile;
     private RandomAccessFile mInactiveDataFile;
+    private FileChannel mActiveDataChannel;
+    private FileChannel mInactiveDataChannel;
+
+    // Read-only mappings of the windows of the data files, the windows of
+    // region 0 followed by the ones of region 1. They are created lazily and
+    // dropped when their file is truncated, or to stay within
+    // MAX_MAPPED_BYTES. The part of a file past its last full window, and
+    // any window that can't be mapped, is read with positional reads.
+    // mWindowUsed holds the value of sWindowClock when each window was last
+    // used. Windows are mapped and dropped with sWindowLock held.
+    private AtomicReferenceArray<MappedByteBuffer> mDataWindows;
+    private AtomicLongArray mWindowUsed;
+    private int mWindowsPerRegion;
+    // Set after the first failure to map a window, to only log it once.
+    private boolean mMapFailed;
+
+    private static final Object sWindowLock = new Object();
+    // The caches with mapped windows, and the total size of the windows.
+    private static final ArrayList<BlobCache> sMappingCaches = new ArrayList<>();
+    private static long sMappedBytes;
+    // Advanced each time a window is mapped, so windows only used before the
+    // last mapping have a smaller value than the ones used after it.
+    private static final AtomicLong sWindowClock = new AtomicLong();
     private int mActiveHashStart;
     private int mInactiveHashStart;
+
+    // The fields below are only used by the writer (mWriteLock held).
     private byte[] mIndexHeader = new byte[INDEX_HEADER_SIZE];
     private byte[] mBlobHeader = new byte[BLOB_HEADER_SIZE];
     private Adler32 mAdler32 = new Adler32();
+    private ByteBuffer mWriteBuffer;
+
+    // Group commit state, guarded by mSyncLock.
+    private final Object mSyncLock = new Object();
+    private long mSyncIntervalMs;
+    private long mSyncDirtyBytes;
+    private long mDirtyBytes;
+    private Thread mSyncThread;
+
+    // Shared by lookups, exclusive for region flips and close().
+    private final ReentrantReadWriteLock mRegionLock =
+            new ReentrantReadWriteLock();
+    // Serializes everything that appends to the data file or the index.
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+
+    // Per-thread scratch space for lookups, so readers share no mutable state.
+    private static final ThreadLocal<ReadScratch> sReadScratch =
+            new ThreadLocal<ReadScratch>() {
+        @Override
+        protected ReadScratch initialValue() {
+            return new ReadScratch();
+        }
+    };
+
+    private static class ReadScratch {
+        final ByteBuffer header = ByteBuffer.allocate(BLOB_HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        final Adler32 adler32 = new Adler32();
+        // Holds the blob read by the last readBlob().
+        byte[] blob = new byte[0];
+
+        void ensureBlobCapacity(int length) {
+            if (length <= blob.length) return;
+            blob = new byte[Math.max(length,
+                    Math.min(blob.length * 2, MAX_SCRATCH_BLOB_SIZE))];
+        }
+
+        // Lets go of a buffer too large to keep for the next lookups.
+        void trimBlob() {
+            if (blob.length > MAX_SCRATCH_BLOB_SIZE) blob = new byte[0];
+        }
+    }
 
     // Creates the cache. Three files will be created:
     // path + ".idx", path + ".0", and path + ".1"
@@ -174,11 +312,25 @@ public class BlobCache implements Closeable {
     // called after this is called.
     @Override
     public void close() {
-        syncAll();
-        closeAll();
+        stopSyncThread();
+        mWriteLock.lock();
+        mRegionLock.writeLock().lock();
+        try {
+            syncAll();
+            closeAll();
+        } finally {
+            mRegionLock.writeLock().unlock();
+            mWriteLock.unlock();
+        }
     }
 
     private void closeAll() {
+        synchronized (sWindowLock) {
+            if (mDataWindows != null) {
+                releaseWindowsLocked(0, mDataWindows.length());
+            }
+            sMappingCaches.remove(this);
+        }
         closeSilently(mIndexChannel);
         closeSilently(mIndexFile);
         closeSilently(mDataFile0);
@@ -273,7 +425,12 @@ public class BlobCache implements Closeable {
                     0, mIndexFile.length());
             mIndexBuffer.order(ByteOrder.LITTLE_ENDIAN);
 
+            mWindowsPerRegion = (int) (((long) mMaxBytes + DATA_WINDOW_SIZE - 1)
+                    >> DATA_WINDOW_SHIFT);
+            mDataWindows = new AtomicReferenceArray<>(2 * mWindowsPerRegion);
+            mWindowUsed = new AtomicLongArray(2 * mWindowsPerRegion);
             setActiveVariables();
+            mInactiveEntries = countEntries(mInactiveHashStart);
             return true;
         } catch (IOException ex) {
             Log.e(TAG, "loadIndex failed.", ex);
@@ -284,8 +441,11 @@ public class BlobCache implements Closeable {
     private void setActiveVariables() throws IOException {
         mActiveDataFile = (mActiveRegion == 0) ? mDataFile0 : mDataFile1;
         mInactiveDataFile = (mActiveRegion == 1) ? mDataFile0 : mDataFile1;
+        mActiveDataChannel = mActiveDataFile.getChannel();
+        mInactiveDataChannel = mInactiveDataFile.getChannel();
         mActiveDataFile.setLength(mActiveBytes);
         mActiveDataFile.seek(mActiveBytes);
+        mCommittedBytes = mActiveBytes;
 
         mActiveHashStart = INDEX_HEADER_SIZE;
         mInactiveHashStart = INDEX_HEADER_SIZE;
@@ -323,20 +483,59 @@ public class BlobCache implements Closeable {
         mDataFile1.write(buf, 0, 4);
     }
 
-    // Flip the active region and the inactive region.
+    // Flip the active region and the inactive region. The caller must hold
+    // mWriteLock. Lookups are excluded while the regions are swapped.
     private void flipRegion() throws IOException {
-        mActiveRegion = 1 - mActiveRegion;
-        mActiveEntries = 0;
-        mActiveBytes = DATA_HEADER_SIZE;
+        mRegionLock.writeLock().lock();
+        try {
+            mEvictionCount.addAndGet(countEvictedEntries());
+            mFlipCount.incrementAndGet();
+            mInactiveEntries = mActiveEntries;
 
-        writeInt(mIndexHeader, IH_ACTIVE_REGION, mActiveRegion);
-        writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
-        writeInt(mIndexHeader, IH_ACTIVE_BYTES, mActiveBytes);
-        updateIndexHeader();
+            mActiveRegion = 1 - mActiveRegion;
+            mActiveEntries = 0;
+            mActiveBytes = DATA_HEADER_SIZE;
 
-        setActiveVariables();
-        clearHash(mActiveHashStart);
-        syncIndex();
+            writeInt(mIndexHeader, IH_ACTIVE_REGION, mActiveRegion);
+            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            writeInt(mIndexHeader, IH_ACTIVE_BYTES, mActiveBytes);
+            updateIndexHeader();
+
+            setActiveVariables();
+            clearHash(mActiveHashStart);
+            syncIndex();
+
+            // The new active file has been truncated. Accessing pages of the
+            // old mappings beyond the end of file would fault, so drop them.
+            synchronized (sWindowLock) {
+                releaseWindowsLocked(mActiveRegion * mWindowsPerRegion,
+                        mWindowsPerRegion);
+            }
+        } finally {
+            mRegionLock.writeLock().unlock();
+        }
+    }
+
+    // Returns the number of entries in the inactive region which are not also
+    // in the active region, i.e. the entries a flip would drop for good.
+    private int countEvictedEntries() {
+        int count = 0;
+        for (int i = 0; i < mMaxEntries; i++) {
+            int offset = mInactiveHashStart + i * 12;
+            if (mIndexBuffer.getInt(offset + 8) == 0) continue;
+            long key = mIndexBuffer.getLong(offset);
+            if (findOffset(key, mActiveHashStart) == 0) ++count;
+        }
+        return count;
+    }
+
+    // Returns the number of used slots in the specified hash region.
+    private int countEntries(int hashStart) {
+        int count = 0;
+        for (int i = 0; i < mMaxEntries; i++) {
+            if (mIndexBuffer.getInt(hashStart + i * 12 + 8) != 0) ++count;
+        }
+        return count;
     }
 
     // Sync mIndexHeader to the index file.
@@ -364,30 +563,41 @@ public class BlobCache implements Closeable {
             throw new RuntimeException("blob is too large!");
         }
 
-        if (mActiveBytes + BLOB_HEADER_SIZE + data.length > mMaxBytes
-                || mActiveEntries * 2 >= mMaxEntries) {
-            flipRegion();
-        }
+        mWriteLock.lock();
+        try {
+            if (mActiveBytes + BLOB_HEADER_SIZE + data.length > mMaxBytes
+                    || mActiveEntries * 2 >= mMaxEntries) {
+                flipRegion();
+            }
 
-        if (!lookupInternal(key, mActiveHashStart)) {
-            // If we don't have an existing entry with the same key, increase
-            // the entry count.
-            mActiveEntries++;
-            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
-        }
+            if (!lookupInternal(key, mActiveHashStart)) {
+                // If we don't have an existing entry with the same key,
+                // increase the entry count.
+                mActiveEntries++;
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            }
 
-        insertInternal(key, data, data.length);
-        updateIndexHeader();
+            insertInternal(key, data, data.length);
+            updateIndexHeader();
+            mInsertCount.incrementAndGet();
+        } finally {
+            mWriteLock.unlock();
+        }
     }
 
     public void clearEntry(long key) throws IOException {
-        if (!lookupInternal(key, mActiveHashStart)) {
-            return; // Nothing to clear
+        mWriteLock.lock();
+        try {
+            if (!lookupInternal(key, mActiveHashStart)) {
+                return; // Nothing to clear
+            }
+            // Use a positional write so the append position of the active
+            // file is left untouched.
+            writeFully(mActiveDataChannel,
+                    ByteBuffer.wrap(new byte[BLOB_HEADER_SIZE]), mFileOffset);
+        } finally {
+            mWriteLock.unlock();
         }
-        byte[] header = mBlobHeader;
-        Arrays.fill(header, (byte) 0);
-        mActiveDataFile.seek(mFileOffset);
-        mActiveDataFile.write(header);
     }
 
     // Appends the data to the active file. It also updates the hash entry.
@@ -395,19 +605,118 @@ public class BlobCache implements Closeable {
     // pointed by mSlotOffset.
     private void insertInternal(long key, byte[] data, int length)
             throws IOException {
+        insertInternal(key, ByteBuffer.wrap(data, 0, length));
+    }
+
+    // Same as above, but the data is the remaining bytes of the given buffer.
+    // The position of the buffer is left unchanged.
+    private void insertInternal(long key, ByteBuffer data) throws IOException {
         byte[] header = mBlobHeader;
-        int sum = checkSum(data);
+        int length = data.remaining();
+        int position = data.position();
+        mAdler32.reset();
+        mAdler32.update(data);
+        data.position(position);
+        int sum = (int) mAdler32.getValue();
         writeLong(header, BH_KEY, key);
         writeInt(header, BH_CHECKSUM, sum);
         writeInt(header, BH_OFFSET, mActiveBytes);
         writeInt(header, BH_LENGTH, length);
         mActiveDataFile.write(header);
-        mActiveDataFile.write(data, 0, length);
+        // The channel shares the file pointer with mActiveDataFile.
+        while (data.hasRemaining()) {
+            mActiveDataChannel.write(data);
+        }
+        data.position(position);
 
         mIndexBuffer.putLong(mSlotOffset, key);
         mIndexBuffer.putInt(mSlotOffset + 8, mActiveBytes);
         mActiveBytes += BLOB_HEADER_SIZE + length;
+        mCommittedBytes = mActiveBytes;
         writeInt(mIndexHeader, IH_ACTIVE_BYTES, mActiveBytes);
+        onDataWritten(BLOB_HEADER_SIZE + length);
+    }
+
+    // Inserts the first count (keys[i], data[i]) pairs into the cache. This is
+    // the same as calling insert() for each pair, but the blobs are coalesced
+    // into large sequential writes and the index header is updated once.
+    public void insert(long[] keys, byte[][] data, int count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (DATA_HEADER_SIZE + BLOB_HEADER_SIZE + data[i].length
+                    > mMaxBytes) {
+                throw new RuntimeException("blob is too large!");
+            }
+        }
+
+        mWriteLock.lock();
+        try {
+            if (mWriteBuffer == null) {
+                mWriteBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+            try {
+                for (int i = 0; i < count; i++) {
+                    long key = keys[i];
+                    byte[] blob = data[i];
+                    if (!hasRoomFor(blob.length)) {
+                        flushWriteBuffer();
+                        flipRegion();
+                    }
+                    if (!lookupInternal(key, mActiveHashStart)) {
+                        mActiveEntries++;
+                        writeInt(mIndexHeader, IH_ACTIVE_ENTRIES,
+                                mActiveEntries);
+                    }
+                    appendBuffered(key, blob);
+                    mInsertCount.incrementAndGet();
+                }
+            } finally {
+                flushWriteBuffer();
+                updateIndexHeader();
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    // Same as insertInternal(), but the blob goes to mWriteBuffer. The hash
+    // entry is updated right away so later keys of the batch see it.
+    private void appendBuffered(long key, byte[] data) throws IOException {
+        int size = BLOB_HEADER_SIZE + data.length;
+        if (size > mWriteBuffer.remaining()) {
+            flushWriteBuffer();
+            if (size > mWriteBuffer.capacity()) {
+                insertInternal(key, data, data.length);
+                return;
+            }
+        }
+        ByteBuffer buf = mWriteBuffer;
+        buf.putLong(key);
+        buf.putInt(checkSum(data));
+        buf.putInt(mActiveBytes);
+        buf.putInt(data.length);
+        buf.put(data);
+
+        mIndexBuffer.putLong(mSlotOffset, key);
+        mIndexBuffer.putInt(mSlotOffset + 8, mActiveBytes);
+        mActiveBytes += size;
+        writeInt(mIndexHeader, IH_ACTIVE_BYTES, mActiveBytes);
+    }
+
+    // Writes out the coalesced blobs, which start at mCommittedBytes.
+    private void flushWriteBuffer() throws IOException {
+        ByteBuffer buf = mWriteBuffer;
+        if (buf == null || buf.position() == 0) return;
+        buf.flip();
+        int size = buf.remaining();
+        // The channel shares the file pointer with mActiveDataFile.
+        while (buf.hasRemaining()) {
+            mActiveDataChannel.write(buf);
+        }
+        buf.clear();
+        mCommittedBytes = mActiveBytes;
+        onDataWritten(size);
     }
 
     public static class LookupRequest {
@@ -416,14 +725,22 @@ public class BlobCache implements Closeable {
         public int length;      // output: the length of the blob
     }
 
+    // Receives a blob found by lookup(long, BlobReader).
+    public interface BlobReader {
+        // The blob is a read-only view of a per-thread buffer, with position
+        // 0 at the first byte of the blob. It is only valid until this method
+        // returns and must not be retained. Returns false if the
+        // blob should be treated as a miss (e.g. its content does not match).
+        boolean read(ByteBuffer blob);
+    }
+
     // This method is for one-off lookup. For repeated lookup, use the version
     // accepting LookupRequest to avoid repeated memory allocation.
-    private LookupRequest mLookupRequest = new LookupRequest();
     public byte[] lookup(long key) throws IOException {
-        mLookupRequest.key = key;
-        mLookupRequest.buffer = null;
-        if (lookup(mLookupRequest)) {
-            return mLookupRequest.buffer;
+        LookupRequest req = new LookupRequest();
+        req.key = key;
+        if (lookup(req)) {
+            return req.buffer;
         } else {
             return null;
         }
@@ -440,44 +757,300 @@ public class BlobCache implements Closeable {
     // This method tries not to throw IOException even if the data file is
     // corrupted, but it can still throw IOException if things get strange.
     public boolean lookup(LookupRequest req) throws IOException {
-        // Look up in the active region first.
-        if (lookupInternal(req.key, mActiveHashStart)) {
-            if (getBlob(mActiveDataFile, mFileOffset, req)) {
+        mRegionLock.readLock().lock();
+        try {
+            // Look up in the active region first.
+            int fileOffset = findOffset(req.key, mActiveHashStart);
+            if (fileOffset != 0 && fileOffset < mCommittedBytes
+                    && getBlob(mActiveDataChannel, fileOffset, req)) {
+                mHitCount.incrementAndGet();
                 return true;
             }
+
+            // Look up in the inactive region.
+            fileOffset = findOffset(req.key, mInactiveHashStart);
+            if (fileOffset == 0
+                    || !getBlob(mInactiveDataChannel, fileOffset, req)) {
+                mMissCount.incrementAndGet();
+                return false;
+            }
+            mHitCount.incrementAndGet();
+        } finally {
+            mRegionLock.readLock().unlock();
         }
 
         // We want to copy the data from the inactive file to the active file
-        // if it's available. So we keep the offset of the hash entry so we can
-        // avoid looking it up again.
-        int insertOffset = mSlotOffset;
+        // if it's available.
+        promote(req.key, req.buffer, req.length);
+        return true;
+    }
+
+    private boolean hasRoomFor(int length) {
+        return mActiveBytes + BLOB_HEADER_SIZE + length <= mMaxBytes
+                && mActiveEntries * 2 < mMaxEntries;
+    }
 
-        // Look up in the inactive region.
-        if (lookupInternal(req.key, mInactiveHashStart)) {
-            if (getBlob(mInactiveDataFile, mFileOffset, req)) {
+    // Copies a blob found in the inactive region into the active region. This
+    // is best-effort: if another thread is writing we skip it rather than
+    // blocking the lookup, the blob will be promoted on a later hit.
+    // The region read lock must not be held, since this may flip the regions.
+    private void promote(long key, byte[] data, int length) {
+        if (!mWriteLock.tryLock()) return;
+        try {
+            if (!hasRoomFor(length)) {
                 // If we don't have enough space to insert this blob into
-                // the active file, just return it.
-                if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes
-                    || mActiveEntries * 2 >= mMaxEntries) {
-                    return true;
+                // the active file, just return it. Unless we want to keep it:
+                // the next insert would flip and drop it anyway, so flip now
+                // and only drop the entries that were not hit.
+                if (mEvictionPolicy != EVICTION_SECOND_CHANCE) return;
+                flipRegion();
+            }
+            // Another thread may have promoted it already.
+            if (lookupInternal(key, mActiveHashStart)) return;
+            insertInternal(key, data, length);
+            mActiveEntries++;
+            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            updateIndexHeader();
+            mPromotionCount.incrementAndGet();
+        } catch (Throwable t) {
+            Log.e(TAG, "cannot copy over");
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    // Same as lookup(LookupRequest), but the blob is handed to the reader.
+    // It is copied out of the memory-mapped data file into a per-thread
+    // buffer, so a hit costs no blob-sized allocation and, once the blob is
+    // in a mapped window, no read syscall.
+    //
+    // The reader runs after the region lock is released: a slow reader (e.g.
+    // decoding the blob) doesn't hold off a flip, which would in turn hold off
+    // all the other lookups and inserts.
+    public boolean lookup(long key, BlobReader reader) throws IOException {
+        ReadScratch scratch = sReadScratch.get();
+        int length;
+        boolean inactive = false;
+        mRegionLock.readLock().lock();
+        try {
+            // Look up in the active region first.
+            length = -1;
+            int fileOffset = findOffset(key, mActiveHashStart);
+            if (fileOffset != 0 && fileOffset < mCommittedBytes) {
+                length = readBlob(mActiveRegion, key, fileOffset, scratch);
+            }
+
+            // Look up in the inactive region.
+            if (length < 0) {
+                fileOffset = findOffset(key, mInactiveHashStart);
+                if (fileOffset != 0) {
+                    length = readBlob(1 - mActiveRegion, key, fileOffset,
+                            scratch);
                 }
-                // Otherwise copy it over.
-                mSlotOffset = insertOffset;
-                try {
-                    insertInternal(req.key, req.buffer, req.length);
-                    mActiveEntries++;
-                    writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
-                    updateIndexHeader();
-                } catch (Throwable t) {
-                    Log.e(TAG, "cannot copy over");
+                if (length < 0) {
+                    mMissCount.incrementAndGet();
+                    return false;
                 }
-                return true;
+                inactive = true;
+            }
+            mHitCount.incrementAndGet();
+        } finally {
+            mRegionLock.readLock().unlock();
+        }
+
+        byte[] data = scratch.blob;
+        boolean result = reader.read(
+                ByteBuffer.wrap(data, 0, length).slice().asReadOnlyBuffer());
+        // Copy the blob over to the active region if it's available.
+        if (inactive) promote(key, data, length);
+        scratch.trimBlob();
+        return result;
+    }
+
+    // Same as lookup(long, BlobReader), but leaves the cache as it is: the
+    // lookup is not counted as a hit or a miss and a blob found in the
+    // inactive region is not promoted. For callers that only want to know
+    // what is cached, so that asking doesn't keep every blob alive.
+    public boolean peek(long key, BlobReader reader) throws IOException {
+        ReadScratch scratch = sReadScratch.get();
+        int length = -1;
+        mRegionLock.readLock().lock();
+        try {
+            int fileOffset = findOffset(key, mActiveHashStart);
+            if (fileOffset != 0 && fileOffset < mCommittedBytes) {
+                length = readBlob(mActiveRegion, key, fileOffset, scratch);
             }
+            if (length < 0) {
+                fileOffset = findOffset(key, mInactiveHashStart);
+                if (fileOffset != 0) {
+                    length = readBlob(1 - mActiveRegion, key, fileOffset,
+                            scratch);
+                }
+            }
+        } finally {
+            mRegionLock.readLock().unlock();
         }
+        if (length < 0) return false;
+        boolean result = reader.read(ByteBuffer.wrap(scratch.blob, 0, length)
+                .slice().asReadOnlyBuffer());
+        scratch.trimBlob();
+        return result;
+    }
 
-        return false;
+    // Copies the blob at the specified offset of the data file of the given
+    // region to scratch.blob, reading through the mapped windows.
+    // Returns the length of the blob, or -1 if the blob is not available.
+    // The region read lock must be held.
+    private int readBlob(int region, long key, int offset, ReadScratch scratch) {
+        ByteBuffer header = scratch.header;
+        try {
+            header.clear();
+            if (readData(region, header, offset) != BLOB_HEADER_SIZE) {
+                Log.w(TAG, "cannot read blob header");
+                return -1;
+            }
+            long blobKey = header.getLong(BH_KEY);
+            if (blobKey == 0) {
+                return -1; // This entry has been cleared.
+            }
+            if (blobKey != key) {
+                Log.w(TAG, "blob key does not match: " + blobKey);
+                return -1;
+            }
+            int sum = header.getInt(BH_CHECKSUM);
+            int blobOffset = header.getInt(BH_OFFSET);
+            if (blobOffset != offset) {
+                Log.w(TAG, "blob offset does not match: " + blobOffset);
+                return -1;
+            }
+            int length = header.getInt(BH_LENGTH);
+            if (length < 0 || length > mMaxBytes - offset - BLOB_HEADER_SIZE) {
+                Log.w(TAG, "invalid blob length: " + length);
+                return -1;
+            }
+
+            scratch.ensureBlobCapacity(length);
+            byte[] blob = scratch.blob;
+            if (readData(region, ByteBuffer.wrap(blob, 0, length),
+                    offset + BLOB_HEADER_SIZE) != length) {
+                Log.w(TAG, "cannot read blob data");
+                return -1;
+            }
+            Adler32 adler32 = scratch.adler32;
+            adler32.reset();
+            adler32.update(blob, 0, length);
+            if ((int) adler32.getValue() != sum) {
+                Log.w(TAG, "blob checksum does not match: " + sum);
+                return -1;
+            }
+            return length;
+        } catch (Throwable t) {
+            Log.e(TAG, "readBlob failed.", t);
+            return -1;
+        }
     }
 
+    // Reads the data file of the given region at the given position until
+    // the buffer is full or the end of file is reached. Returns the number of
+    // bytes read. Reads within a full window are copied from its mapping,
+    // the others are positional reads. The region read lock must be held.
+    private int readData(int region, ByteBuffer buf, int position)
+            throws IOException {
+        int length = buf.remaining();
+        int window = position >> DATA_WINDOW_SHIFT;
+        int windowStart = window << DATA_WINDOW_SHIFT;
+        FileChannel channel = (region == 0)
+                ? mDataFile0.getChannel() : mDataFile1.getChannel();
+        if (position + length <= windowStart + DATA_WINDOW_SIZE) {
+            MappedByteBuffer map = getDataWindow(region, window, channel);
+            if (map != null) {
+                ByteBuffer src = map.duplicate();
+                src.limit(position - windowStart + length)
+                        .position(position - windowStart);
+                buf.put(src);
+                return length;
+            }
+        }
+        return readFully(channel, buf, position);
+    }
+
+    // Returns the mapping of the given window of the data file of the given
+    // region, or null if the file doesn't cover the whole window yet or it
+    // can't be mapped. Each window is mapped once: a mapping is only released
+    // by the GC, so mapping the growing end of the file again and again would
+    // use up the address space of a 32-bit process.
+    private MappedByteBuffer getDataWindow(int region, int window,
+            FileChannel channel) throws IOException {
+        int index = region * mWindowsPerRegion + window;
+        MappedByteBuffer map = mDataWindows.get(index);
+        if (map != null) {
+            long now = sWindowClock.get();
+            if (mWindowUsed.get(index) != now) mWindowUsed.lazySet(index, now);
+            return map;
+        }
+
+        synchronized (sWindowLock) {
+            map = mDataWindows.get(index);
+            if (map != null) return map;
+
+            // Never map past the end: the channel is writable, so that would
+            // extend the file.
+            long start = (long) window << DATA_WINDOW_SHIFT;
+            if (channel.size() < start + DATA_WINDOW_SIZE) return null;
+            if (sMappedBytes + DATA_WINDOW_SIZE > MAX_MAPPED_BYTES
+                    && !evictWindowLocked()) {
+                return null;
+            }
+            try {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        DATA_WINDOW_SIZE);
+            } catch (IOException e) {
+                // Most likely out of address space. The caller falls back to
+                // a positional read, and the window is tried again next time.
+                if (!mMapFailed) Log.w(TAG, "cannot map data window", e);
+                mMapFailed = true;
+                return null;
+            }
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            mDataWindows.set(index, map);
+            mWindowUsed.set(index, sWindowClock.incrementAndGet());
+            sMappedBytes += DATA_WINDOW_SIZE;
+            if (!sMappingCaches.contains(this)) sMappingCaches.add(this);
+            return map;
+        }
+    }
+
+    // Drops the least recently used window of all the caches. Readers still
+    // copying from it keep the mapping alive until they are done. Returns
+    // false if no window is mapped.
+    private static boolean evictWindowLocked() {
+        BlobCache lruCache = null;
+        int lruIndex = -1;
+        long lruUsed = Long.MAX_VALUE;
+        for (int i = 0, n = sMappingCaches.size(); i < n; i++) {
+            BlobCache cache = sMappingCaches.get(i);
+            for (int j = 0, m = cache.mDataWindows.length(); j < m; j++) {
+                if (cache.mDataWindows.get(j) == null) continue;
+                long used = cache.mWindowUsed.get(j);
+                if (used < lruUsed) {
+                    lruCache = cache;
+                    lruIndex = j;
+                    lruUsed = used;
+                }
+            }
+        }
+        if (lruCache == null) return false;
+        lruCache.releaseWindowsLocked(lruIndex, 1);
+        return true;
+    }
+
+    private void releaseWindowsLocked(int start, int count) {
+        for (int i = start; i < start + count; i++) {
+            if (mDataWindows.getAndSet(i, null) != null) {
+                sMappedBytes -= DATA_WINDOW_SIZE;
+            }
+        }
+    }
 
     // Copies the blob for the specified offset in the specified file to
     // req.buffer. If req.buffer is null or too small, allocate a buffer and
@@ -485,17 +1058,17 @@ public class BlobCache implements Closeable {
     // Returns false if the blob is not available (either the index file is
     // not sync with the data file, or one of them is corrupted). The length
     // of the blob is stored in the req.length variable.
-    private boolean getBlob(RandomAccessFile file, int offset,
-            LookupRequest req) throws IOException {
-        byte[] header = mBlobHeader;
-        long oldPosition = file.getFilePointer();
+    private boolean getBlob(FileChannel channel, int offset,
+            LookupRequest req) {
+        ReadScratch scratch = sReadScratch.get();
+        ByteBuffer header = scratch.header;
         try {
-            file.seek(offset);
-            if (file.read(header) != BLOB_HEADER_SIZE) {
+            header.clear();
+            if (readFully(channel, header, offset) != BLOB_HEADER_SIZE) {
                 Log.w(TAG, "cannot read blob header");
                 return false;
             }
-            long blobKey = readLong(header, BH_KEY);
+            long blobKey = header.getLong(BH_KEY);
             if (blobKey == 0) {
                 return false; // This entry has been cleared.
             }
@@ -503,13 +1076,13 @@ public class BlobCache implements Closeable {
                 Log.w(TAG, "blob key does not match: " + blobKey);
                 return false;
             }
-            int sum = readInt(header, BH_CHECKSUM);
-            int blobOffset = readInt(header, BH_OFFSET);
+            int sum = header.getInt(BH_CHECKSUM);
+            int blobOffset = header.getInt(BH_OFFSET);
             if (blobOffset != offset) {
                 Log.w(TAG, "blob offset does not match: " + blobOffset);
                 return false;
             }
-            int length = readInt(header, BH_LENGTH);
+            int length = header.getInt(BH_LENGTH);
             if (length < 0 || length > mMaxBytes - offset - BLOB_HEADER_SIZE) {
                 Log.w(TAG, "invalid blob length: " + length);
                 return false;
@@ -521,11 +1094,15 @@ public class BlobCache implements Closeable {
             byte[] blob = req.buffer;
             req.length = length;
 
-            if (file.read(blob, 0, length) != length) {
+            if (readFully(channel, ByteBuffer.wrap(blob, 0, length),
+                    offset + BLOB_HEADER_SIZE) != length) {
                 Log.w(TAG, "cannot read blob data");
                 return false;
             }
-            if (checkSum(blob, 0, length) != sum) {
+            Adler32 adler32 = scratch.adler32;
+            adler32.reset();
+            adler32.update(blob, 0, length);
+            if ((int) adler32.getValue() != sum) {
                 Log.w(TAG, "blob checksum does not match: " + sum);
                 return false;
             }
@@ -533,8 +1110,54 @@ public class BlobCache implements Closeable {
         } catch (Throwable t)  {
             Log.e(TAG, "getBlob failed.", t);
             return false;
-        } finally {
-            file.seek(oldPosition);
+        }
+    }
+
+    // Reads from the channel at the given position until the buffer is full or
+    // the end of file is reached. Positional reads do not touch the file
+    // pointer, so they are safe to run concurrently with the writer.
+    private static int readFully(FileChannel channel, ByteBuffer buf,
+            long position) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf,
+            long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    // Lock-free probe of the specified hash region for the lookup path.
+    // Returns the data file offset of the slot holding the key, or 0 if it's
+    // not found. Unlike lookupInternal() this never modifies the index.
+    private int findOffset(long key, int hashStart) {
+        int slot = (int) (key % mMaxEntries);
+        if (slot < 0) slot += mMaxEntries;
+        int slotBegin = slot;
+        while (true) {
+            int offset = hashStart + slot * 12;
+            // The writer stores the key before the offset, so read the offset
+            // first. A torn read is caught when the blob header is verified.
+            int candidateOffset = mIndexBuffer.getInt(offset + 8);
+            if (candidateOffset == 0) {
+                return 0;
+            }
+            if (mIndexBuffer.getLong(offset) == key) {
+                return candidateOffset;
+            }
+            if (++slot >= mMaxEntries) {
+                slot = 0;
+            }
+            if (slot == slotBegin) {
+                return 0;
+            }
         }
     }
 
@@ -545,6 +1168,7 @@ public class BlobCache implements Closeable {
     // insertion.
     // If the lookup is successful, the file offset is also saved in
     // mFileOffset.
+    // This is only used by the writer (mWriteLock held).
     private int mSlotOffset;
     private int mFileOffset;
     private boolean lookupInternal(long key, int hashStart) {
@@ -574,6 +1198,148 @@ public class BlobCache implements Closeable {
         }
     }
 
+    // Sets the eviction policy: EVICTION_FLIP or EVICTION_SECOND_CHANCE.
+    public void setEvictionPolicy(int policy) {
+        if (policy != EVICTION_FLIP && policy != EVICTION_SECOND_CHANCE) {
+            throw new IllegalArgumentException("invalid policy: " + policy);
+        }
+        mEvictionPolicy = policy;
+    }
+
+    // Counters since the cache was opened (or resetStats() was called).
+    public static class Stats {
+        public long hits;        // lookups that found the blob
+        public long misses;      // lookups that did not
+        public long inserts;     // calls to insert()
+        public long promotions;  // hits copied from the inactive region
+        public long evictions;   // entries dropped by region flips
+        public long flips;       // region flips
+        public int activeEntries;
+        public int inactiveEntries;
+
+        public float hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0f : (float) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + " misses=" + misses
+                    + " hitRate=" + hitRate() + " inserts=" + inserts
+                    + " promotions=" + promotions + " evictions=" + evictions
+                    + " flips=" + flips + " entries=" + activeEntries
+                    + "/" + inactiveEntries;
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.hits = mHitCount.get();
+        stats.misses = mMissCount.get();
+        stats.inserts = mInsertCount.get();
+        stats.promotions = mPromotionCount.get();
+        stats.evictions = mEvictionCount.get();
+        stats.flips = mFlipCount.get();
+        mWriteLock.lock();
+        try {
+            stats.activeEntries = mActiveEntries;
+            stats.inactiveEntries = mInactiveEntries;
+        } finally {
+            mWriteLock.unlock();
+        }
+        return stats;
+    }
+
+    public void resetStats() {
+        mHitCount.set(0);
+        mMissCount.set(0);
+        mInsertCount.set(0);
+        mPromotionCount.set(0);
+        mEvictionCount.set(0);
+        mFlipCount.set(0);
+    }
+
+    // Enables group commit: data appended to the cache is synced by a
+    // background thread once dirtyBytes bytes are pending or intervalMs has
+    // passed since they were written, whichever comes first. A value of 0
+    // disables that trigger; if both are 0, nothing is synced implicitly
+    // (the default).
+    public void setSyncPolicy(long intervalMs, long dirtyBytes) {
+        synchronized (mSyncLock) {
+            mSyncIntervalMs = intervalMs;
+            mSyncDirtyBytes = dirtyBytes;
+            if ((intervalMs > 0 || dirtyBytes > 0) && mSyncThread == null) {
+                mSyncThread = new Thread("BlobCache-sync") {
+                    @Override
+                    public void run() {
+                        runSyncLoop();
+                    }
+                };
+                mSyncThread.setDaemon(true);
+                mSyncThread.start();
+            }
+            mSyncLock.notifyAll();
+        }
+    }
+
+    // Called by the writer after data has been written to the active file.
+    private void onDataWritten(int bytes) {
+        synchronized (mSyncLock) {
+            if (mSyncThread == null) return;
+            boolean wasClean = mDirtyBytes == 0;
+            mDirtyBytes += bytes;
+            if (wasClean || (mSyncDirtyBytes > 0
+                    && mDirtyBytes >= mSyncDirtyBytes)) {
+                mSyncLock.notifyAll();
+            }
+        }
+    }
+
+    private void runSyncLoop() {
+        while (true) {
+            synchronized (mSyncLock) {
+                try {
+                    long dirtySince = 0;
+                    while (true) {
+                        if (mSyncThread != Thread.currentThread()) return;
+                        if (mDirtyBytes > 0) {
+                            long now = System.currentTimeMillis();
+                            if (dirtySince == 0) dirtySince = now;
+                            if (mSyncDirtyBytes > 0
+                                    && mDirtyBytes >= mSyncDirtyBytes) break;
+                            if (mSyncIntervalMs > 0) {
+                                long wait = dirtySince + mSyncIntervalMs - now;
+                                if (wait <= 0) break;
+                                mSyncLock.wait(wait);
+                                continue;
+                            }
+                        }
+                        mSyncLock.wait();
+                    }
+                    mDirtyBytes = 0;
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            syncAll();
+        }
+    }
+
+    private void stopSyncThread() {
+        Thread thread;
+        synchronized (mSyncLock) {
+            thread = mSyncThread;
+            mSyncThread = null;
+            mSyncLock.notifyAll();
+        }
+        if (thread == null) return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public void syncIndex() {
         try {
             mIndexBuffer.force();
@@ -582,8 +1348,9 @@ public class BlobCache implements Closeable {
         }
     }
 
+    // Syncs the data files before the index, so a synced index never points
+    // to blobs that are not on disk yet.
     public void syncAll() {
-        syncIndex();
         try {
             mDataFile0.getFD().sync();
         } catch (Throwable t) {
@@ -594,6 +1361,7 @@ public class BlobCache implements Closeable {
         } catch (Throwable t) {
             Log.w(TAG, "sync data file 1 failed", t);
         }
+        syncIndex();
     }
 
     // This is for testing only.
@@ -616,6 +1384,48 @@ public class BlobCache implements Closeable {
         }
     }
 
+    // This is for testing only (see benchmarks/BlobCacheFuzzer).
+    //
+    // Reads back every blob referenced by the index through both the
+    // positional read path and the windowed read path. Returns the
+    // number of entries for which the two disagree (one accepts the blob and
+    // the other rejects it, or they return different bytes). After a crash
+    // or a corrupted file, entries may fail verification, but both paths
+    // must always reject them the same way.
+    int countInconsistentEntries() {
+        int count = 0;
+        mRegionLock.readLock().lock();
+        try {
+            LookupRequest req = new LookupRequest();
+            ReadScratch scratch = new ReadScratch();
+            for (int region = 0; region < 2; region++) {
+                boolean active = region == mActiveRegion;
+                int hashStart = active ? mActiveHashStart : mInactiveHashStart;
+                FileChannel channel = active
+                        ? mActiveDataChannel : mInactiveDataChannel;
+                for (int i = 0; i < mMaxEntries; i++) {
+                    int offset = hashStart + i * 12;
+                    int fileOffset = mIndexBuffer.getInt(offset + 8);
+                    if (fileOffset == 0) continue;
+                    if (active && fileOffset >= mCommittedBytes) continue;
+                    req.key = mIndexBuffer.getLong(offset);
+                    boolean found = getBlob(channel, fileOffset, req);
+                    int length = readBlob(region, req.key, fileOffset, scratch);
+                    if (found != (length >= 0)) {
+                        ++count;
+                    } else if (found && !ByteBuffer.wrap(
+                            scratch.blob, 0, length).equals(
+                            ByteBuffer.wrap(req.buffer, 0, req.length))) {
+                        ++count;
+                    }
+                }
+            }
+        } finally {
+            mRegionLock.readLock().unlock();
+        }
+        return count;
+    }
+
     int checkSum(byte[] data) {
         mAdler32.reset();
         mAdler32.update(data);
@@ -69,8 +69,17 @@ public class CountedDataInputStream extends FilterInputStream {
         return skip;
     }
 
+    // InputStream.skip() may skip less than asked before the end of the
+    // stream, e.g. a BufferedInputStream only skips what it has buffered.
     public void skipOrThrow(long length) throws IOException {
-        if (skip(length) != length) throw new EOFException();
+        while (length > 0) {
+            long skipped = skip(length);
+            if (skipped <= 0) {
+                if (read() < 0) throw new EOFException();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
     }
 
     public void skipTo(long target) throws IOException {
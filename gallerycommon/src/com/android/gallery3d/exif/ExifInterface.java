@@ -775,6 +775,59 @@ public class ExifInterface {
         is.close();
     }
 
+    /**
+     * Reads only the compressed thumbnail of a jpeg image. Only the APP1
+     * segment is read, up to the end of the thumbnail: the tags are skipped
+     * and nothing is stored in this ExifInterface object, so this is much
+     * cheaper than {@link #readExif(InputStream)} followed by
+     * {@link #getThumbnail()}.
+     *
+     * @param inStream an InputStream containing a jpeg compressed image.
+     * @return the compressed thumbnail, or null if the image has none.
+     * @throws IOException
+     */
+    public byte[] readThumbnail(InputStream inStream) throws IOException {
+        if (inStream == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        try {
+            // IFD 0 is only walked for the link to IFD 1, which holds the
+            // offset and size of the thumbnail.
+            ExifParser parser = ExifParser.parse(inStream,
+                    ExifParser.OPTION_IFD_1 | ExifParser.OPTION_THUMBNAIL, this);
+            for (int event = parser.next(); event != ExifParser.EVENT_END;
+                    event = parser.next()) {
+                if (event == ExifParser.EVENT_COMPRESSED_IMAGE) {
+                    byte[] buf = new byte[parser.getCompressedImageSize()];
+                    return buf.length == parser.read(buf) ? buf : null;
+                }
+            }
+            return null;
+        } catch (ExifInvalidFormatException e) {
+            throw new IOException("Invalid exif format : " + e);
+        }
+    }
+
+    /**
+     * Reads only the compressed thumbnail of a jpeg file.
+     *
+     * @param inFileName a string representing the filepath to jpeg file.
+     * @return the compressed thumbnail, or null if the image has none.
+     * @see #readThumbnail(InputStream)
+     */
+    public byte[] readThumbnail(String inFileName) throws FileNotFoundException, IOException {
+        if (inFileName == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(inFileName));
+            return readThumbnail(is);
+        } finally {
+            closeSilently(is);
+        }
+    }
+
     /**
      * Sets the exif tags, clearing this ExifInterface object's existing exif
      * tags.
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2026, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.gallery3d.util;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+// JobMetrics collects per job class latency statistics from ThreadPool and
+// JobLimiter: how long jobs wait in the JobLimiter and in the ThreadPool
+// queue, how long they run, and how many are cancelled before they start.
+// Jobs are grouped by the simple name of their class, e.g. LocalImageRequest.
+//
+// Collection is off by default. When it's off the only cost is reading a
+// volatile flag. To turn it on, run "adb shell setprop log.tag.JobMetrics
+// DEBUG" and restart the app. The collected data is printed by
+// "adb shell dumpsys activity <gallery activity>", and can also be dumped with
+// dump() or logged with logDump().
+public class JobMetrics {
+    private static final String TAG = "JobMetrics";
+
+    // Histogram bucket i counts durations in [2^(i-1), 2^i) ms; bucket 0
+    // counts durations under 1 ms and the last bucket everything above.
+    private static final int BUCKET_COUNT = 16;
+
+    private static volatile boolean sEnabled;
+    private static final ConcurrentHashMap<Class<?>, Entry> sEntries =
+            new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final String name;
+        final long[] limiterWait = new long[BUCKET_COUNT];
+        final long[] queueWait = new long[BUCKET_COUNT];
+        final long[] run = new long[BUCKET_COUNT];
+        long completed;
+        long cancelledWhileRunning;
+        long cancelledBeforeStart;
+
+        Entry(String name) {
+            this.name = name;
+        }
+    }
+
+    // Called once when the app starts.
+    public static void initialize() {
+        setEnabled(Log.isLoggable(TAG, Log.DEBUG));
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void reset() {
+        sEntries.clear();
+    }
+
+    // Called by JobLimiter when a job leaves its wait list for the pool.
+    static void recordLimiterWait(Class<?> jobClass, long waitMs) {
+        Entry e = getEntry(jobClass);
+        synchronized (e) {
+            e.limiterWait[bucketOf(waitMs)]++;
+        }
+    }
+
+    // Called by ThreadPool when a job is taken from the queue.
+    static void recordQueueWait(Class<?> jobClass, long waitMs) {
+        Entry e = getEntry(jobClass);
+        synchronized (e) {
+            e.queueWait[bucketOf(waitMs)]++;
+        }
+    }
+
+    // Called by ThreadPool when a job has run.
+    static void recordRun(Class<?> jobClass, long runMs, boolean cancelled) {
+        Entry e = getEntry(jobClass);
+        synchronized (e) {
+            e.run[bucketOf(runMs)]++;
+            if (cancelled) {
+                e.cancelledWhileRunning++;
+            } else {
+                e.completed++;
+            }
+        }
+    }
+
+    // Called when a job is cancelled before it started to run.
+    static void recordCancelledBeforeStart(Class<?> jobClass) {
+        Entry e = getEntry(jobClass);
+        synchronized (e) {
+            e.cancelledBeforeStart++;
+        }
+    }
+
+    private static Entry getEntry(Class<?> jobClass) {
+        Entry e = sEntries.get(jobClass);
+        if (e == null) {
+            String name = jobClass.getSimpleName();
+            if (name.isEmpty()) name = jobClass.getName();
+            Entry newEntry = new Entry(name);
+            e = sEntries.putIfAbsent(jobClass, newEntry);
+            if (e == null) e = newEntry;
+        }
+        return e;
+    }
+
+    private static int bucketOf(long ms) {
+        if (ms <= 0) return 0;
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(ms));
+    }
+
+    // Returns the upper bound in ms of the bucket holding the given fraction
+    // of the samples, or -1 if there are no samples.
+    private static long percentile(long[] histogram, float fraction) {
+        long total = 0;
+        for (long n : histogram) total += n;
+        if (total == 0) return -1;
+        long target = (long) Math.ceil(total * fraction);
+        long sum = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            sum += histogram[i];
+            if (sum >= target) return 1L << i;
+        }
+        return 1L << (BUCKET_COUNT - 1);
+    }
+
+    private static String summarize(long[] histogram) {
+        long p50 = percentile(histogram, 0.5f);
+        if (p50 < 0) return "-";
+        return "p50<" + p50 + " p90<" + percentile(histogram, 0.9f)
+                + " p99<" + percentile(histogram, 0.99f);
+    }
+
+    public static void dump(PrintWriter pw) {
+        ArrayList<Entry> entries = new ArrayList<>(sEntries.values());
+        Collections.sort(entries, (a, b) -> a.name.compareTo(b.name));
+        pw.println("JobMetrics (ms, histogram upper bounds)"
+                + (sEnabled ? "" : " [disabled]"));
+        for (Entry e : entries) {
+            synchronized (e) {
+                long total = e.completed + e.cancelledWhileRunning
+                        + e.cancelledBeforeStart;
+                float cancelRate = total == 0 ? 0f
+                        : (float) (e.cancelledWhileRunning
+                                + e.cancelledBeforeStart) / total;
+                pw.println("  " + e.name + ": completed=" + e.completed
+                        + " cancelled(running)=" + e.cancelledWhileRunning
+                        + " cancelled(queued)=" + e.cancelledBeforeStart
+                        + " cancelRate=" + cancelRate);
+                pw.println("    limiterWait " + summarize(e.limiterWait)
+                        + " | queueWait " + summarize(e.queueWait)
+                        + " | run " + summarize(e.run));
+            }
+        }
+        pw.flush();
+    }
+
+    public static String dump() {
+        StringWriter writer = new StringWriter();
+        dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    public static void logDump() {
+        for (String line : dump().split("\n")) {
+            Log.d(TAG, line);
+        }
+    }
+}
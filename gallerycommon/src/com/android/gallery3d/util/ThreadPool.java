@@ -16,18 +16,22 @@
 
 package com.android.gallery3d.util;
 
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThreadPool {
     @SuppressWarnings("unused")
     private static final String TAG = "ThreadPool";
-    private static final int CORE_POOL_SIZE = 4;
-    private static final int MAX_POOL_SIZE = 8;
+    private static final int MAX_CPU_THREADS = 8;
+    private static final int NETWORK_PERMITS = 2;
+    private static final int DEFAULT_CPU_PERMITS = 2;
     private static final int KEEP_ALIVE_TIME = 10; // 10 seconds
 
     // Resource type
@@ -35,10 +39,20 @@ public class ThreadPool {
     public static final int MODE_CPU = 1;
     public static final int MODE_NETWORK = 2;
 
+    // Job priority, from the most to the least urgent. Queued jobs are run in
+    // priority order. Within the VISIBLE and PREFETCH bands the most recently
+    // submitted job runs first: while the user scrolls, the newest requests
+    // are for the items on screen now. The other bands run in FIFO order.
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+    public static final int PRIORITY_MAINTENANCE = 3;
+    public static final int PRIORITY_COUNT = 4;
+
     public static final JobContext JOB_CONTEXT_STUB = new JobContextStub();
 
-    ResourceCounter mCpuCounter = new ResourceCounter(2);
-    ResourceCounter mNetworkCounter = new ResourceCounter(2);
+    ResourceCounter mCpuCounter;
+    ResourceCounter mNetworkCounter = new ResourceCounter(NETWORK_PERMITS);
 
     // A Job is like a Callable, but it has an addition JobContext parameter.
     public interface Job<T> {
@@ -82,33 +96,149 @@ public class ThreadPool {
         }
     }
 
-    private final Executor mExecutor;
+    // A snapshot of the queue statistics of one priority band.
+    public static class QueueStats {
+        public int queueDepth;      // jobs waiting in the queue now
+        public long started;        // jobs taken from the queue
+        public long removed;        // jobs cancelled while still queued
+        public long totalWaitMs;    // total time started jobs spent queued
+        public long maxWaitMs;      // longest time a started job was queued
+
+        public long averageWaitMs() {
+            return started == 0 ? 0 : totalWaitMs / started;
+        }
+
+        @Override
+        public String toString() {
+            return "depth=" + queueDepth + " started=" + started
+                    + " removed=" + removed + " avgWait=" + averageWaitMs()
+                    + "ms maxWait=" + maxWaitMs + "ms";
+        }
+    }
 
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicInteger[] mQueueDepth = new AtomicInteger[PRIORITY_COUNT];
+    private final AtomicLong[] mStarted = new AtomicLong[PRIORITY_COUNT];
+    private final AtomicLong[] mRemoved = new AtomicLong[PRIORITY_COUNT];
+    private final AtomicLong[] mTotalWaitMs = new AtomicLong[PRIORITY_COUNT];
+    private final AtomicLong[] mMaxWaitMs = new AtomicLong[PRIORITY_COUNT];
+
+    // Creates a pool sized to the device: one CPU-mode job per core, plus
+    // threads for the network-mode jobs, which mostly block on I/O and so
+    // don't take a core away from decoding.
     public ThreadPool() {
-        this(CORE_POOL_SIZE, MAX_POOL_SIZE);
+        this(getCpuThreadCount() + NETWORK_PERMITS,
+                new ResourceCounter(getCpuThreadCount()));
     }
 
+    // Runs up to initPoolSize jobs at a time, and one if it is 0. The queue
+    // is unbounded, so the pool never grew past its core size and
+    // maxPoolSize has never had an effect.
     public ThreadPool(int initPoolSize, int maxPoolSize) {
+        this(initPoolSize, new ResourceCounter(DEFAULT_CPU_PERMITS));
+    }
+
+    private ThreadPool(int threadCount, ResourceCounter cpuCounter) {
+        mCpuCounter = cpuCounter;
+        threadCount = Math.max(1, threadCount);
+        // Only Workers are put into the queue, ordered by Worker.compareTo().
+        // The threads are started on demand and stop when idle.
         mExecutor = new ThreadPoolExecutor(
-                initPoolSize, maxPoolSize, KEEP_ALIVE_TIME,
-                TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
-                new PriorityThreadFactory("thread-pool",
+                threadCount, threadCount, KEEP_ALIVE_TIME,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new WorkerThreadFactory("thread-pool",
                 android.os.Process.THREAD_PRIORITY_BACKGROUND));
+        mExecutor.allowCoreThreadTimeOut(true);
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueueDepth[i] = new AtomicInteger();
+            mStarted[i] = new AtomicLong();
+            mRemoved[i] = new AtomicLong();
+            mTotalWaitMs[i] = new AtomicLong();
+            mMaxWaitMs[i] = new AtomicLong();
+        }
     }
 
     // Submit a job to the thread pool. The listener will be called when the
     // job is finished (or cancelled).
     public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
-        Worker<T> w = new Worker<>(job, listener);
-        mExecutor.execute(w);
-        return w;
+        return submit(job, listener, PRIORITY_BACKGROUND);
     }
 
     public <T> Future<T> submit(Job<T> job) {
         return submit(job, null);
     }
 
-    private class Worker<T> implements Runnable, Future<T>, JobContext {
+    // Same as above, with the given PRIORITY_* value.
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener,
+            int priority) {
+        return submit(job, listener, priority, job.getClass());
+    }
+
+    // Same as above. JobMetrics are reported under the given class; this is
+    // used by JobLimiter to report the class of the job it wraps.
+    <T> Future<T> submit(Job<T> job, FutureListener<T> listener,
+            int priority, Class<?> metricsClass) {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("bad priority: " + priority);
+        }
+        Worker<T> w = new Worker<>(job, listener, priority,
+                mSequence.getAndIncrement(), metricsClass);
+        mQueueDepth[priority].incrementAndGet();
+        mExecutor.execute(w);
+        return w;
+    }
+
+    private static int getCpuThreadCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(DEFAULT_CPU_PERMITS, Math.min(cores, MAX_CPU_THREADS));
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final int mPriority;
+        private final AtomicInteger mNumber = new AtomicInteger();
+
+        public WorkerThreadFactory(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, mName + '-' + mNumber.getAndIncrement()) {
+                @Override
+                public void run() {
+                    android.os.Process.setThreadPriority(mPriority);
+                    super.run();
+                }
+            };
+        }
+    }
+
+    public QueueStats getQueueStats(int priority) {
+        QueueStats stats = new QueueStats();
+        stats.queueDepth = mQueueDepth[priority].get();
+        stats.started = mStarted[priority].get();
+        stats.removed = mRemoved[priority].get();
+        stats.totalWaitMs = mTotalWaitMs[priority].get();
+        stats.maxWaitMs = mMaxWaitMs[priority].get();
+        return stats;
+    }
+
+    private void onJobStarted(int priority, long waitMs) {
+        mQueueDepth[priority].decrementAndGet();
+        mStarted[priority].incrementAndGet();
+        mTotalWaitMs[priority].addAndGet(waitMs);
+        AtomicLong max = mMaxWaitMs[priority];
+        long current;
+        while (waitMs > (current = max.get())) {
+            if (max.compareAndSet(current, waitMs)) break;
+        }
+    }
+
+    private class Worker<T> implements Runnable, Future<T>, JobContext,
+            Comparable<Worker<?>> {
         @SuppressWarnings("hiding")
         private static final String TAG = "Worker";
         private Job<T> mJob;
@@ -119,15 +249,40 @@ public class ThreadPool {
         private boolean mIsDone;
         private T mResult;
         private int mMode;
+        private final int mPriority;
+        private final long mSequence;
+        private final long mSubmitTime;
+        private final Class<?> mMetricsClass;
 
-        public Worker(Job<T> job, FutureListener<T> listener) {
+        public Worker(Job<T> job, FutureListener<T> listener, int priority,
+                long sequence, Class<?> metricsClass) {
             mJob = job;
             mListener = listener;
+            mPriority = priority;
+            mSequence = sequence;
+            mSubmitTime = SystemClock.uptimeMillis();
+            mMetricsClass = metricsClass;
+        }
+
+        @Override
+        public int compareTo(Worker<?> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            if (mSequence == other.mSequence) return 0;
+            boolean lifo = mPriority <= PRIORITY_PREFETCH;
+            return (mSequence > other.mSequence) == lifo ? -1 : 1;
         }
 
         // This is called by a thread in the thread pool.
         @Override
         public void run() {
+            long startTime = SystemClock.uptimeMillis();
+            onJobStarted(mPriority, startTime - mSubmitTime);
+            boolean metrics = JobMetrics.isEnabled();
+            if (metrics) {
+                JobMetrics.recordQueueWait(mMetricsClass, startTime - mSubmitTime);
+            }
             T result = null;
 
             // A job is in CPU mode by default. setMode returns false
@@ -138,6 +293,12 @@ public class ThreadPool {
                 } catch (Throwable ex) {
                     Log.w(TAG, "Exception in running a job", ex);
                 }
+                if (metrics) {
+                    JobMetrics.recordRun(mMetricsClass,
+                            SystemClock.uptimeMillis() - startTime, mIsCancelled);
+                }
+            } else if (metrics) {
+                JobMetrics.recordCancelledBeforeStart(mMetricsClass);
             }
 
             synchronized(this) {
@@ -151,16 +312,35 @@ public class ThreadPool {
 
         // Below are the methods for Future.
         @Override
-        public synchronized void cancel() {
-            if (mIsCancelled) return;
-            mIsCancelled = true;
-            if (mWaitOnResource != null) {
-                synchronized (mWaitOnResource) {
-                    mWaitOnResource.notifyAll();
+        public void cancel() {
+            synchronized (this) {
+                if (mIsCancelled) return;
+                mIsCancelled = true;
+                if (mWaitOnResource != null) {
+                    synchronized (mWaitOnResource) {
+                        mWaitOnResource.notifyAll();
+                    }
+                }
+                if (mCancelListener != null) {
+                    mCancelListener.onCancel();
                 }
             }
-            if (mCancelListener != null) {
-                mCancelListener.onCancel();
+
+            // If the job has not started yet, drop it from the queue now
+            // rather than letting it hold its place until a thread picks it
+            // up. It's then finished here, as if it had run and seen the
+            // cancellation. The listener is called without holding any lock.
+            if (mExecutor.remove(this)) {
+                mQueueDepth[mPriority].decrementAndGet();
+                mRemoved[mPriority].incrementAndGet();
+                if (JobMetrics.isEnabled()) {
+                    JobMetrics.recordCancelledBeforeStart(mMetricsClass);
+                }
+                synchronized (this) {
+                    mIsDone = true;
+                    notifyAll();
+                }
+                if (mListener != null) mListener.onFutureDone(this);
             }
         }
 
@@ -31,6 +31,7 @@ import android.os.IBinder;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.WindowManager;
 import android.widget.Toolbar;
 
@@ -42,13 +43,16 @@ import com.android.gallery3d.data.MediaItem;
 import com.android.gallery3d.filtershow.cache.ImageLoader;
 import com.android.gallery3d.ui.GLRoot;
 import com.android.gallery3d.ui.GLRootView;
+import com.android.gallery3d.util.JobMetrics;
 import com.android.gallery3d.util.PanoramaViewHelper;
 import com.android.gallery3d.util.ThreadPool;
 import com.android.photos.data.GalleryBitmapPool;
 
 import org.codeaurora.gallery.R;
 
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.PrintWriter;
 
 public abstract class AbstractGalleryActivity extends AbstractPermissionActivity implements GalleryContext {
     private static final String TAG = "AbstractGalleryActivity";
@@ -308,6 +312,24 @@ public abstract class AbstractGalleryActivity extends AbstractPermissionActivity
         }
     }
 
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        // Keep the thumbnail walk off the CPU while the user is browsing.
+        // Every event counts, so a long drag holds it off too.
+        if (mBatchService != null) {
+            mBatchService.getThumbnailPrefetcher().onUserActivity();
+        }
+        return super.dispatchTouchEvent(event);
+    }
+
+    // Called by "adb shell dumpsys activity <component>".
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer,
+            String[] args) {
+        super.dump(prefix, fd, writer, args);
+        JobMetrics.dump(writer);
+    }
+
     public ThreadPool getBatchServiceThreadPoolIfAvailable() {
         if (mBatchServiceIsBound && mBatchService != null) {
             return mBatchService.getThreadPool();
@@ -19,6 +19,7 @@ package com.android.gallery3d.app;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
@@ -77,12 +78,16 @@ public class AlbumDataLoader {
     private MySourceListener mSourceListener = new MySourceListener();
     private LoadingListener mLoadingListener;
 
+    private final AbstractGalleryActivity mActivity;
+    private final PrefetchWindow mPrefetch;
     private ReloadTask mReloadTask;
     // the data version on which last loading failed
     private long mFailedVersion = MediaObject.INVALID_DATA_VERSION;
 
     public AlbumDataLoader(AbstractGalleryActivity context, MediaSet mediaSet) {
+        mActivity = context;
         mSource = mediaSet;
+        mPrefetch = new PrefetchWindow(DATA_CACHE_SIZE, MIN_LOAD_COUNT, MAX_LOAD_COUNT);
 
         mData = new MediaItem[DATA_CACHE_SIZE];
         mItemVersion = new long[DATA_CACHE_SIZE];
@@ -110,9 +115,15 @@ public class AlbumDataLoader {
                 }
             }
         };
+        // Memory callbacks come on the UI thread; move the window under the
+        // render lock like everything else here.
+        mPrefetch.setCapacityListener(
+                () -> mMainHandler.post(() -> updateContentWindow(true)));
     }
 
     public void resume() {
+        mPrefetch.reset();
+        mActivity.registerComponentCallbacks(mPrefetch);
         mSource.addContentListener(mSourceListener);
         mReloadTask = new ReloadTask();
         mReloadTask.start();
@@ -122,6 +133,7 @@ public class AlbumDataLoader {
         mReloadTask.terminate();
         mReloadTask = null;
         mSource.removeContentListener(mSourceListener);
+        mActivity.unregisterComponentCallbacks(mPrefetch);
     }
 
     public MediaItem get(int index) {
@@ -196,17 +208,25 @@ public class AlbumDataLoader {
         Utils.assertTrue(start <= end
                 && end - start <= mData.length && end <= mSize);
 
-        int length = mData.length;
         mActiveStart = start;
         mActiveEnd = end;
+        mPrefetch.onScroll(start);
 
         // If no data is visible, keep the cache content
         if (start == end) return;
 
-        int contentStart = Utils.clamp((start + end) / 2 - length / 2,
-                0, Math.max(0, mSize - length));
+        updateContentWindow(false);
+    }
+
+    // Moves the content window to where the prefetch window wants it. Unless
+    // forced, small moves are skipped as long as the active window is loaded.
+    private void updateContentWindow(boolean force) {
+        int start = mActiveStart;
+        int end = mActiveEnd;
+        int length = mPrefetch.getCapacity(end - start);
+        int contentStart = mPrefetch.getContentStart(start, end, mSize);
         int contentEnd = Math.min(contentStart + length, mSize);
-        if (mContentStart > start || mContentEnd < end
+        if (force || mContentStart > start || mContentEnd < end
                 || Math.abs(contentStart - mContentStart) > MIN_LOAD_COUNT) {
             setContentWindow(contentStart, contentEnd);
         }
@@ -265,16 +285,57 @@ public class AlbumDataLoader {
             UpdateInfo info = new UpdateInfo();
             info.version = mSourceVersion;
             info.size = mSize;
-            for (int i = mContentStart, n = mContentEnd; i < n; ++i) {
-                int index = i % DATA_CACHE_SIZE;
-                if (mSetVersion[index] != mVersion) {
-                    info.reloadStart = i;
-                    info.reloadCount = Math.min(MAX_LOAD_COUNT, n - i);
+            // Load the visible items first, then the ones the user is
+            // scrolling toward, then the rest.
+            int count = mPrefetch.getLoadCount();
+            int start = Utils.clamp(mActiveStart, mContentStart, mContentEnd);
+            int end = Utils.clamp(mActiveEnd, mContentStart, mContentEnd);
+            if (mPrefetch.getDirection() >= 0) {
+                if (findForward(info, start, mContentEnd, count)
+                        || findBackward(info, mContentStart, start, count)) {
+                    return info;
+                }
+            } else {
+                if (findBackward(info, mContentStart, end, count)
+                        || findForward(info, end, mContentEnd, count)) {
                     return info;
                 }
             }
             return mSourceVersion == mVersion ? null : info;
         }
+
+        private boolean isStale(int i) {
+            return mSetVersion[i % DATA_CACHE_SIZE] != mVersion;
+        }
+
+        // Finds the first stale item in [from, to) and loads up to count
+        // items from it toward the end.
+        private boolean findForward(UpdateInfo info, int from, int to, int count) {
+            for (int i = from; i < to; ++i) {
+                if (isStale(i)) {
+                    info.reloadStart = i;
+                    info.reloadCount = Math.min(count, mContentEnd - i);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Finds the last stale item in [from, to) and loads the stale items
+        // before it, up to count in all.
+        private boolean findBackward(UpdateInfo info, int from, int to, int count) {
+            for (int i = to - 1; i >= from; --i) {
+                if (isStale(i)) {
+                    int first = i;
+                    int limit = Math.max(mContentStart, i - count + 1);
+                    while (first > limit && isStale(first - 1)) --first;
+                    info.reloadStart = first;
+                    info.reloadCount = i - first + 1;
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
     private class UpdateContent implements Callable<Void> {
@@ -383,7 +444,10 @@ public class AlbumDataLoader {
                     info.version = version;
                 }
                 if (info.reloadCount > 0) {
+                    long loadStart = SystemClock.uptimeMillis();
                     info.items = mSource.getMediaItem(info.reloadStart, info.reloadCount);
+                    mPrefetch.onItemsLoaded(info.reloadCount,
+                            SystemClock.uptimeMillis() - loadStart);
                 }
                 executeAndWait(new UpdateContent(info));
             }
@@ -21,6 +21,7 @@ import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
 
+import com.android.gallery3d.data.ThumbnailPrefetcher;
 import com.android.gallery3d.util.ThreadPool;
 
 public class BatchService extends Service {
@@ -33,6 +34,24 @@ public class BatchService extends Service {
 
     private final IBinder mBinder = new LocalBinder();
     private ThreadPool mThreadPool = new ThreadPool(1, 1);
+    // The thumbnail walk runs for minutes, it has its own thread so it doesn't
+    // hold up the batch operations.
+    private ThreadPool mPrefetchThreadPool = new ThreadPool(1, 1);
+    private ThumbnailPrefetcher mThumbnailPrefetcher;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mThumbnailPrefetcher = new ThumbnailPrefetcher(
+                (GalleryApp) getApplication(), mPrefetchThreadPool);
+        mThumbnailPrefetcher.start();
+    }
+
+    @Override
+    public void onDestroy() {
+        mThumbnailPrefetcher.stop();
+        super.onDestroy();
+    }
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -45,4 +64,8 @@ public class BatchService extends Service {
     public ThreadPool getThreadPool() {
         return mThreadPool;
     }
+
+    public ThumbnailPrefetcher getThumbnailPrefetcher() {
+        return mThumbnailPrefetcher;
+    }
 }
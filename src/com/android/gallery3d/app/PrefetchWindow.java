@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2026, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.gallery3d.app;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+
+import com.android.gallery3d.common.Utils;
+
+// PrefetchWindow decides which items a data loader keeps around the visible
+// (active) range, and how many of them it loads at a time.
+//
+// While the user scrolls, the content window is shifted toward the scroll
+// direction by the number of items the scroll covers in LOOKAHEAD_MS, so the
+// items about to be shown are loaded before the ones just scrolled past.
+// The load count follows the time the source takes per item, aiming at
+// batches of TARGET_LOAD_MS. When the system is low on memory the window
+// shrinks, and it grows back to the full ring on the next resume.
+//
+// The window is placed on the main thread; the load times are recorded on
+// the loader thread.
+class PrefetchWindow implements ComponentCallbacks2 {
+    // A pause longer than this between two scroll steps ends the scroll.
+    private static final long SCROLL_IDLE_MS = 250;
+    private static final long LOOKAHEAD_MS = 500;
+    private static final long TARGET_LOAD_MS = 40;
+    // Weight of a new sample in the running averages, in percent.
+    private static final int SMOOTHING = 40;
+
+    private final int mRingSize;
+    private final int mMinLoadCount;
+    private final int mMaxLoadCount;
+
+    private Runnable mCapacityListener;
+    private volatile int mCapacity;
+
+    private int mLastStart = -1;
+    private long mLastTime;
+    // Items per second; positive when scrolling toward the end.
+    private float mVelocity;
+
+    // Milliseconds per item, or 0 before the first load.
+    private volatile float mLoadCost;
+
+    PrefetchWindow(int ringSize, int minLoadCount, int maxLoadCount) {
+        mRingSize = ringSize;
+        mMinLoadCount = minLoadCount;
+        mMaxLoadCount = maxLoadCount;
+        mCapacity = ringSize;
+    }
+
+    // The listener is called on the main thread when the capacity shrinks.
+    void setCapacityListener(Runnable listener) {
+        mCapacityListener = listener;
+    }
+
+    void reset() {
+        mCapacity = mRingSize;
+        mLastStart = -1;
+        mVelocity = 0;
+    }
+
+    // The number of items the content window may hold, at least the given
+    // active length.
+    int getCapacity(int activeLength) {
+        return Utils.clamp(mCapacity, activeLength, mRingSize);
+    }
+
+    // Records the start of the new active window, to follow the scroll.
+    void onScroll(int start) {
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - mLastTime;
+        if (mLastStart < 0 || elapsed > SCROLL_IDLE_MS) {
+            mVelocity = 0;
+        } else if (elapsed > 0) {
+            float velocity = (start - mLastStart) * 1000f / elapsed;
+            mVelocity += (velocity - mVelocity) * SMOOTHING / 100;
+        }
+        mLastStart = start;
+        mLastTime = now;
+    }
+
+    // Returns the start of the content window for the given active window;
+    // the content window holds getCapacity(end - start) items.
+    int getContentStart(int start, int end, int size) {
+        int length = getCapacity(end - start);
+        int room = length - (end - start);
+        // Always keep a quarter of the room behind, for small scrolls back.
+        int lead = (int) Math.min(Math.abs(mVelocity) * LOOKAHEAD_MS / 1000,
+                room / 4);
+        int before = getDirection() >= 0 ? room / 2 - lead : room / 2 + lead;
+        return Utils.clamp(start - before, 0, Math.max(0, size - length));
+    }
+
+    // Returns 1 when scrolling toward the end, -1 toward the start, else 0.
+    int getDirection() {
+        if (mVelocity == 0) return 0;
+        return mVelocity > 0 ? 1 : -1;
+    }
+
+    int getLoadCount() {
+        float cost = mLoadCost;
+        if (cost <= 0) return mMinLoadCount;
+        return Utils.clamp((int) (TARGET_LOAD_MS / cost),
+                mMinLoadCount, mMaxLoadCount);
+    }
+
+    void onItemsLoaded(int count, long elapsedMs) {
+        if (count <= 0) return;
+        float cost = Math.max(elapsedMs, 1) / (float) count;
+        float old = mLoadCost;
+        mLoadCost = old <= 0 ? cost : old + (cost - old) * SMOOTHING / 100;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        int capacity;
+        if (level >= TRIM_MEMORY_BACKGROUND
+                || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            capacity = mRingSize / 8;
+        } else if (level == TRIM_MEMORY_RUNNING_LOW) {
+            capacity = mRingSize / 4;
+        } else if (level == TRIM_MEMORY_RUNNING_MODERATE) {
+            capacity = mRingSize / 2;
+        } else {
+            return;
+        }
+        capacity = Math.max(capacity, 2 * mMinLoadCount);
+        if (capacity >= mCapacity) return;
+        mCapacity = capacity;
+        if (mCapacityListener != null) mCapacityListener.run();
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
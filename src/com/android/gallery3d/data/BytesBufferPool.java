@@ -16,70 +16,217 @@
 
 package com.android.gallery3d.data;
 
+import android.system.ErrnoException;
+import android.system.Os;
+
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 
+// BytesBufferPool recycles the buffers images are read into.
+//
+// Buffers are kept in power-of-two size classes, from 4 KB up to 4 MB, at
+// most poolSize of each. A request gets a buffer from the smallest class that
+// fits it, so a large thumbnail reuses a large buffer instead of growing a
+// small one. Buffers can be byte arrays (BytesBuffer) or direct ByteBuffers,
+// which DecodeUtils.decodeUsingPool() also accepts. A BytesBuffer that needs
+// to grow swaps its array with one of a larger class instead of copying.
+//
+// Files are read with one bulk FileChannel transfer sized from fstat(), and
+// only fall back to growing the buffer when the size is unknown (pipes).
 public class BytesBufferPool {
 
-    private static final int READ_STEP = 4096;
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int MAX_CLASS_SHIFT = 22;
     private final int mPoolSize;
     private final int mBufferSize;
-    private final ArrayList<BytesBuffer> mList;
+    private final ArrayList<ArrayList<BytesBuffer>> mBuffers;
+    private final ArrayList<ArrayList<ByteBuffer>> mDirectBuffers;
+
     public BytesBufferPool(int poolSize, int bufferSize) {
-        mList = new ArrayList<>(poolSize);
         mPoolSize = poolSize;
         mBufferSize = bufferSize;
+        mBuffers = new ArrayList<>(MAX_CLASS_SHIFT + 1);
+        mDirectBuffers = new ArrayList<>(MAX_CLASS_SHIFT + 1);
+        for (int i = 0; i <= MAX_CLASS_SHIFT; i++) {
+            mBuffers.add(new ArrayList<>());
+            mDirectBuffers.add(new ArrayList<>());
+        }
+    }
+
+    // Returns the shift of the smallest class holding the given size.
+    private static int classOf(int size) {
+        if (size <= (1 << MIN_CLASS_SHIFT)) return MIN_CLASS_SHIFT;
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    // Returns the shift of the largest class a buffer of the given capacity
+    // can serve, or -1 if it is outside the pooled range.
+    private static int floorClassOf(int capacity) {
+        if (capacity < (1 << MIN_CLASS_SHIFT)) return -1;
+        int shift = 31 - Integer.numberOfLeadingZeros(capacity);
+        return shift <= MAX_CLASS_SHIFT ? shift : -1;
+    }
+
+    private static int roundUp(int size) {
+        int shift = classOf(size);
+        return shift < 31 ? 1 << shift : size;
+    }
+
+    public BytesBuffer get() {
+        return get(mBufferSize);
     }
 
-    public synchronized BytesBuffer get() {
-        int n = mList.size();
-        return n > 0 ? mList.remove(n - 1) : new BytesBuffer(mBufferSize);
+    // Returns an empty buffer of at least the given capacity.
+    public synchronized BytesBuffer get(int minCapacity) {
+        int shift = classOf(minCapacity);
+        if (shift <= MAX_CLASS_SHIFT) {
+            ArrayList<BytesBuffer> list = mBuffers.get(shift);
+            int n = list.size();
+            if (n > 0) return list.remove(n - 1);
+        }
+        return new BytesBuffer(this, roundUp(minCapacity));
     }
 
     public synchronized void recycle(BytesBuffer buffer) {
-        if (buffer.data.length != mBufferSize) return;
-        if (mList.size() < mPoolSize) {
+        int shift = floorClassOf(buffer.data.length);
+        if (shift < 0) return;
+        ArrayList<BytesBuffer> list = mBuffers.get(shift);
+        if (list.size() < mPoolSize) {
             buffer.offset = 0;
             buffer.length = 0;
-            mList.add(buffer);
+            list.add(buffer);
+        }
+    }
+
+    // Returns a cleared direct buffer of at least the given capacity.
+    public synchronized ByteBuffer getDirect(int minCapacity) {
+        int shift = classOf(minCapacity);
+        if (shift <= MAX_CLASS_SHIFT) {
+            ArrayList<ByteBuffer> list = mDirectBuffers.get(shift);
+            int n = list.size();
+            if (n > 0) {
+                ByteBuffer buffer = list.remove(n - 1);
+                buffer.clear();
+                return buffer;
+            }
         }
+        return ByteBuffer.allocateDirect(roundUp(minCapacity));
+    }
+
+    public synchronized void recycle(ByteBuffer buffer) {
+        if (!buffer.isDirect()) return;
+        int shift = floorClassOf(buffer.capacity());
+        if (shift < 0) return;
+        ArrayList<ByteBuffer> list = mDirectBuffers.get(shift);
+        if (list.size() < mPoolSize) list.add(buffer);
     }
 
     public synchronized void clear() {
-        mList.clear();
+        for (int i = 0; i <= MAX_CLASS_SHIFT; i++) {
+            mBuffers.get(i).clear();
+            mDirectBuffers.get(i).clear();
+        }
+    }
+
+    // Reads the content of the file descriptor into a direct buffer from the
+    // pool. The returned buffer is positioned at 0 with the content up to its
+    // limit; it should be recycled when done. Returns null if cancelled.
+    public ByteBuffer readDirect(JobContext jc, FileDescriptor fd) throws IOException {
+        try (FileInputStream fis = new FileInputStream(fd)) {
+            FileChannel channel = fis.getChannel();
+            long size = getFileSize(fd);
+            ByteBuffer buffer = getDirect(size > 0 ? (int) size : mBufferSize);
+            if (size > 0) buffer.limit((int) size);
+            while (true) {
+                boolean eof = !readFully(jc, channel, buffer);
+                if (jc.isCancelled()) {
+                    recycle(buffer);
+                    return null;
+                }
+                if (eof || size > 0) break;
+                // The size is unknown and the buffer is full: move to the
+                // next class and keep reading.
+                buffer.flip();
+                ByteBuffer larger = getDirect(buffer.capacity() * 2);
+                larger.put(buffer);
+                recycle(buffer);
+                buffer = larger;
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    // Returns the size of the file, or -1 if unknown.
+    private static long getFileSize(FileDescriptor fd) {
+        try {
+            long size = Os.fstat(fd).st_size;
+            return size > 0 && size <= Integer.MAX_VALUE ? size : -1;
+        } catch (ErrnoException e) {
+            return -1;
+        }
+    }
+
+    // Reads until the buffer has no room left. Returns false at the end of
+    // the file.
+    private static boolean readFully(JobContext jc, FileChannel channel,
+            ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) return false;
+            if (jc.isCancelled()) return true;
+        }
+        return true;
     }
 
     public static class BytesBuffer {
         public byte[] data;
         public int offset;
         public int length;
+        private final BytesBufferPool mPool;
 
-        private BytesBuffer(int capacity) {
+        private BytesBuffer(BytesBufferPool pool, int capacity) {
             this.data = new byte[capacity];
+            mPool = pool;
+        }
+
+        // Makes data at least the given size. The current content is lost:
+        // the array is swapped with the one of a pooled buffer of the right
+        // class, and the old array goes back to the pool.
+        public void ensureCapacity(int capacity) {
+            if (data.length >= capacity) return;
+            BytesBuffer other = mPool.get(capacity);
+            byte[] old = data;
+            data = other.data;
+            other.data = old;
+            mPool.recycle(other);
+            offset = 0;
+            length = 0;
         }
 
         // an helper function to read content from FileDescriptor
         public void readFrom(JobContext jc, FileDescriptor fd) throws IOException {
             try (FileInputStream fis = new FileInputStream(fd)) {
+                FileChannel channel = fis.getChannel();
+                long size = getFileSize(fd);
                 length = 0;
-                int capacity = data.length;
-                while (true) {
-                    int step = Math.min(READ_STEP, capacity - length);
-                    int rc = fis.read(data, length, step);
-                    if (rc < 0 || jc.isCancelled()) return;
-                    length += rc;
-
-                    if (length == capacity) {
-                        byte[] newData = new byte[data.length * 2];
-                        System.arraycopy(data, 0, newData, 0, data.length);
-                        data = newData;
-                        capacity = data.length;
-                    }
+                if (size > 0) ensureCapacity((int) size);
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0,
+                        size > 0 ? (int) size : data.length);
+                while (readFully(jc, channel, buffer)
+                        && !jc.isCancelled() && size <= 0) {
+                    // The size is unknown and the array is full: grow it.
+                    byte[] newData = new byte[data.length * 2];
+                    System.arraycopy(data, 0, newData, 0, data.length);
+                    buffer = ByteBuffer.wrap(newData, data.length, data.length);
+                    data = newData;
                 }
+                length = buffer.position();
             }
         }
     }
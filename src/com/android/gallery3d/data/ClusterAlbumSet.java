@@ -23,11 +23,16 @@ import com.android.gallery3d.app.GalleryApp;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.TimeZone;
 
 public class ClusterAlbumSet extends MediaSet implements ContentListener {
     @SuppressWarnings("unused")
     private static final String TAG = "ClusterAlbumSet";
+    private static final String[] LOCAL_SET_PREFIXES = {
+            "/local/", "/combo/", "/picasa/", "/filter/mediatype/"};
     private final GalleryApp mApplication;
     private final MediaSet mBaseSet;
     private final int mKind;
@@ -41,6 +46,9 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
      */
     private int mTotalSelectableMediaItemCount;
     private ArrayList<Integer> mAlbumItemCountList;
+    // Kept across updates so it can recluster only the changed items.
+    private TimeClustering mTimeClustering;
+    private final ClusterCache mCache;
 
     public ClusterAlbumSet(Path path, GalleryApp application,
                            MediaSet baseSet, int kind) {
@@ -48,6 +56,7 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
         mApplication = application;
         mBaseSet = baseSet;
         mKind = kind;
+        mCache = new ClusterCache(application.getAndroidContext(), path);
         baseSet.addContentListener(this);
     }
 
@@ -102,38 +111,32 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
         }
 
         mAlbums.clear();
-        Clustering clustering;
-        Context context = mApplication.getAndroidContext();
-        switch (mKind) {
-            case ClusterSource.CLUSTER_ALBUMSET_TIME:
-                clustering = new TimeClustering(context);
-                break;
-            case ClusterSource.CLUSTER_ALBUMSET_LOCATION:
-                clustering = new LocationClustering(context);
-                break;
-            case ClusterSource.CLUSTER_ALBUMSET_TAG:
-                clustering = new TagClustering(context);
-                break;
-            case ClusterSource.CLUSTER_ALBUMSET_FACE:
-                clustering = new FaceClustering(context);
-                break;
-            default: /* CLUSTER_ALBUMSET_SIZE */
-                clustering = new SizeClustering(context);
-                break;
+        Clustering clustering = null;
+        String cacheKey = getCacheKey();
+        ArrayList<ClusterCache.Entry> entries =
+                cacheKey == null ? null : mCache.load(cacheKey);
+        if (entries == null) {
+            clustering = createClustering();
+            clustering.run(mBaseSet);
+            entries = getEntries(clustering);
+            // Don't save if the media changed while clustering.
+            if (cacheKey != null && clustering.isResultComplete()
+                    && cacheKey.startsWith(MediaIndex.getInstance(mApplication)
+                            .getContentKey() + "|")) {
+                mCache.save(cacheKey, entries);
+            }
         }
-        clustering.run(mBaseSet);
-        int n = clustering.getNumberOfClusters();
+
         DataManager dataManager = mApplication.getDataManager();
-        for (int i = 0; i < n; i++) {
-            Path childPath;
-            String childName = clustering.getClusterName(i);
-            if (mKind == ClusterSource.CLUSTER_ALBUMSET_TAG) {
-                childPath = mPath.getChild(Uri.encode(childName));
-            } else if (mKind == ClusterSource.CLUSTER_ALBUMSET_SIZE) {
-                long minSize = ((SizeClustering) clustering).getMinSize(i);
-                childPath = mPath.getChild(minSize);
-            } else {
-                childPath = mPath.getChild(i);
+        for (int i = 0, n = entries.size(); i < n; i++) {
+            ClusterCache.Entry entry = entries.get(i);
+            Path childPath = mPath.getChild(entry.segment);
+            MediaItem cover = null;
+            if (clustering != null) {
+                cover = clustering.getClusterCover(i);
+            } else if (entry.cover != null) {
+                MediaObject object = dataManager.getMediaObject(entry.cover);
+                if (object instanceof MediaItem) cover = (MediaItem) object;
             }
 
             ClusterAlbum album;
@@ -143,11 +146,11 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
                     album = new ClusterAlbum(childPath, dataManager, this, mKind);
                 }
             }
-            album.setMediaItems(clustering.getCluster(i));
-            album.setName(childName);
-            album.setCoverMediaItem(clustering.getClusterCover(i));
-            album.setImageItemCount(clustering.getClusterImageCount(i));
-            album.setVideoItemCount(clustering.getClusterVideoCount(i));
+            album.setMediaItems(entry.paths);
+            album.setName(entry.name);
+            album.setCoverMediaItem(cover);
+            album.setImageItemCount(entry.imageCount);
+            album.setVideoItemCount(entry.videoCount);
             mAlbums.add(album);
 
             int size = oldPaths.size();
@@ -167,6 +170,85 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
         }
     }
 
+    private Clustering createClustering() {
+        Context context = mApplication.getAndroidContext();
+        switch (mKind) {
+            case ClusterSource.CLUSTER_ALBUMSET_TIME:
+                if (mTimeClustering == null) {
+                    mTimeClustering = new TimeClustering(context);
+                }
+                return mTimeClustering;
+            case ClusterSource.CLUSTER_ALBUMSET_LOCATION:
+                return new LocationClustering(context);
+            case ClusterSource.CLUSTER_ALBUMSET_TAG:
+                return new TagClustering(context);
+            case ClusterSource.CLUSTER_ALBUMSET_FACE:
+                return new FaceClustering(context);
+            default: /* CLUSTER_ALBUMSET_SIZE */
+                return new SizeClustering(context);
+        }
+    }
+
+    private ArrayList<ClusterCache.Entry> getEntries(Clustering clustering) {
+        int n = clustering.getNumberOfClusters();
+        ArrayList<ClusterCache.Entry> entries = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String segment;
+            String childName = clustering.getClusterName(i);
+            if (mKind == ClusterSource.CLUSTER_ALBUMSET_TAG) {
+                segment = Uri.encode(childName);
+            } else if (mKind == ClusterSource.CLUSTER_ALBUMSET_SIZE) {
+                segment = String.valueOf(((SizeClustering) clustering).getMinSize(i));
+            } else {
+                segment = String.valueOf(i);
+            }
+            MediaItem cover = clustering.getClusterCover(i);
+            entries.add(new ClusterCache.Entry(segment, childName,
+                    clustering.getCluster(i), clustering.getClusterImageCount(i),
+                    clustering.getClusterVideoCount(i),
+                    cover == null ? null : cover.getPath()));
+        }
+        return entries;
+    }
+
+    // Returns the key to save the clusters with, or null if they can't be
+    // saved. Besides the media, the names depend on the locale and time zone,
+    // and on the current year, which time captions leave out.
+    //
+    // The index isn't reconciled here: reload() has no JobContext to cancel
+    // it with. A local base set has just reconciled it in its loader when it
+    // stops loading; if the media changed since, the key is null and the
+    // clusters are computed without the cache.
+    private String getCacheKey() {
+        if (!hasOnlyLocalMedia(mBaseSet.getPath().toString())) return null;
+        String contentKey = MediaIndex.getInstance(mApplication).getContentKey();
+        if (contentKey == null) return null;
+        return contentKey + "|" + Locale.getDefault() + "|"
+                + TimeZone.getDefault().getID() + "|"
+                + Calendar.getInstance().get(Calendar.YEAR);
+    }
+
+    // Returns true if the set with the given path only holds local media, so
+    // the media index knows when it changes. The picasa source of this build
+    // has no media. Of the filters only the media type filter is a function
+    // of the media alone.
+    private static boolean hasOnlyLocalMedia(String path) {
+        for (int i = 0, n = path.length(); i < n; i++) {
+            char c = path.charAt(i);
+            if (i > 0 && c != '{' && c != ',') continue;
+            int start = (i == 0) ? 0 : i + 1;
+            boolean local = false;
+            for (String prefix : LOCAL_SET_PREFIXES) {
+                if (path.startsWith(prefix, start)) {
+                    local = true;
+                    break;
+                }
+            }
+            if (!local) return false;
+        }
+        return true;
+    }
+
     protected void updateClustersContents() {
         final HashMap<Path, Integer> existing = new HashMap<>();
         mBaseSet.enumerateTotalMediaItems((index, item) -> existing.put(item.getPath(), item.getMediaType()));
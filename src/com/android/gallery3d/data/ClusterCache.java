@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2026, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.gallery3d.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.gallery3d.common.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+// ClusterCache keeps the clusters of a ClusterAlbumSet in a file, so they can
+// be shown again in a later session without running the clustering.
+//
+// Each set has its own file, named after the fingerprint of the set's path.
+// The file records the key it was saved with, and is only used if the caller
+// asks for the same key. The caller builds the key from whatever the clusters
+// depend on.
+class ClusterCache {
+    private static final String TAG = "ClusterCache";
+    private static final String DIR_NAME = "clusters";
+    private static final int MAGIC = 0x434c5354; // "CLST"
+    private static final int VERSION = 1;
+
+    private final File mFile;
+    private final String mSetPath;
+
+    // One cluster: the last segment of its album path, its name, its items
+    // and the counts and cover reported by the clustering.
+    static class Entry {
+        final String segment;
+        final String name;
+        final ArrayList<Path> paths;
+        final int imageCount;
+        final int videoCount;
+        final Path cover;
+
+        Entry(String segment, String name, ArrayList<Path> paths,
+                int imageCount, int videoCount, Path cover) {
+            this.segment = segment;
+            this.name = Utils.ensureNotNull(name);
+            this.paths = paths;
+            this.imageCount = imageCount;
+            this.videoCount = videoCount;
+            this.cover = cover;
+        }
+    }
+
+    ClusterCache(Context context, Path setPath) {
+        File dir = new File(context.getCacheDir(), DIR_NAME);
+        mFile = new File(dir, String.format("%016x%016x",
+                setPath.getFingerprintHigh(), setPath.getFingerprintLow()));
+        mSetPath = setPath.toString();
+    }
+
+    // Returns the clusters saved with the given key, or null.
+    ArrayList<Entry> load(String key) {
+        if (!mFile.exists()) return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !in.readUTF().equals(mSetPath)
+                    || !in.readUTF().equals(key)) {
+                return null;
+            }
+            int n = in.readInt();
+            ArrayList<Entry> entries = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                String segment = in.readUTF();
+                String name = in.readUTF();
+                int imageCount = in.readInt();
+                int videoCount = in.readInt();
+                String cover = in.readUTF();
+                int m = in.readInt();
+                ArrayList<Path> paths = new ArrayList<>(m);
+                for (int j = 0; j < m; j++) {
+                    paths.add(Path.fromString(in.readUTF()));
+                }
+                entries.add(new Entry(segment, name, paths, imageCount,
+                        videoCount, cover.isEmpty() ? null : Path.fromString(cover)));
+            }
+            return entries;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "cannot read clusters of " + mSetPath, e);
+            return null;
+        } finally {
+            Utils.closeSilently(in);
+        }
+    }
+
+    // Writes to a temporary file first, so a crash never leaves a partial
+    // file behind.
+    void save(String key, ArrayList<Entry> entries) {
+        File dir = mFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "cannot create " + dir);
+            return;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mSetPath);
+            out.writeUTF(key);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.segment);
+                out.writeUTF(entry.name);
+                out.writeInt(entry.imageCount);
+                out.writeInt(entry.videoCount);
+                out.writeUTF(entry.cover == null ? "" : entry.cover.toString());
+                out.writeInt(entry.paths.size());
+                for (Path path : entry.paths) {
+                    out.writeUTF(path.toString());
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "cannot save clusters of " + mSetPath);
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "cannot save clusters of " + mSetPath, e);
+            tmp.delete();
+        } finally {
+            Utils.closeSilently(out);
+        }
+    }
+}
@@ -40,4 +40,10 @@ public abstract class Clustering {
         return 0;
     }
 
+    // Returns false if the result of the last run() is incomplete and should
+    // not be kept for later sessions.
+    public boolean isResultComplete() {
+        return true;
+    }
+
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2026, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.gallery3d.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.util.Arrays;
+
+// CursorSnapshot is an in-memory copy of rows of another cursor. The values
+// are kept in primitive arrays per column, so copying a row doesn't box
+// anything. It is used to read a query result before taking a lock, and then
+// build media items from it under the lock without touching the database.
+//
+// Values read back the same way the source cursor returns them: a NULL
+// reads as 0 or null, and numbers read as strings where asked.
+class CursorSnapshot extends AbstractCursor {
+    private final String[] mColumnNames;
+    private final Column[] mColumns;
+    private int mRowCount;
+    private int mCapacity;
+
+    private static class Column {
+        byte[] types;
+        long[] longs;
+        double[] doubles;
+        String[] strings;
+        byte[][] blobs;
+    }
+
+    public CursorSnapshot(String[] columnNames, int capacity) {
+        mColumnNames = columnNames;
+        mColumns = new Column[columnNames.length];
+        mCapacity = Math.max(1, capacity);
+        for (int i = 0; i < mColumns.length; i++) {
+            mColumns[i] = new Column();
+            mColumns[i].types = new byte[mCapacity];
+        }
+    }
+
+    // Copies the row the source cursor is positioned at. The source must
+    // have the same columns as this snapshot.
+    public void addRow(Cursor source) {
+        if (mRowCount == mCapacity) grow();
+        int row = mRowCount++;
+        for (int i = 0; i < mColumns.length; i++) {
+            Column c = mColumns[i];
+            int type = source.getType(i);
+            c.types[row] = (byte) type;
+            switch (type) {
+                case FIELD_TYPE_INTEGER:
+                    if (c.longs == null) c.longs = new long[mCapacity];
+                    c.longs[row] = source.getLong(i);
+                    break;
+                case FIELD_TYPE_FLOAT:
+                    if (c.doubles == null) c.doubles = new double[mCapacity];
+                    c.doubles[row] = source.getDouble(i);
+                    break;
+                case FIELD_TYPE_STRING:
+                    if (c.strings == null) c.strings = new String[mCapacity];
+                    c.strings[row] = source.getString(i);
+                    break;
+                case FIELD_TYPE_BLOB:
+                    if (c.blobs == null) c.blobs = new byte[mCapacity][];
+                    c.blobs[row] = source.getBlob(i);
+                    break;
+                default:
+                    // FIELD_TYPE_NULL: nothing to store.
+                    break;
+            }
+        }
+    }
+
+    private void grow() {
+        int capacity = mCapacity * 2;
+        for (Column c : mColumns) {
+            c.types = Arrays.copyOf(c.types, capacity);
+            if (c.longs != null) {
+                c.longs = Arrays.copyOf(c.longs, capacity);
+            }
+            if (c.doubles != null) {
+                c.doubles = Arrays.copyOf(c.doubles, capacity);
+            }
+            if (c.strings != null) {
+                c.strings = Arrays.copyOf(c.strings, capacity);
+            }
+            if (c.blobs != null) {
+                c.blobs = Arrays.copyOf(c.blobs, capacity);
+            }
+        }
+        mCapacity = capacity;
+    }
+
+    @Override
+    public int getCount() {
+        return mRowCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getType(int column) {
+        checkPosition();
+        return mColumns[column].types[mPos];
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return getType(column) == FIELD_TYPE_NULL;
+    }
+
+    @Override
+    public String getString(int column) {
+        Column c = mColumns[column];
+        switch (getType(column)) {
+            case FIELD_TYPE_STRING:
+                return c.strings[mPos];
+            case FIELD_TYPE_INTEGER:
+                return Long.toString(c.longs[mPos]);
+            case FIELD_TYPE_FLOAT:
+                return Double.toString(c.doubles[mPos]);
+            case FIELD_TYPE_BLOB:
+                throw new IllegalStateException("column " + column + " is a blob");
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public long getLong(int column) {
+        Column c = mColumns[column];
+        switch (getType(column)) {
+            case FIELD_TYPE_INTEGER:
+                return c.longs[mPos];
+            case FIELD_TYPE_FLOAT:
+                return (long) c.doubles[mPos];
+            case FIELD_TYPE_STRING:
+                try {
+                    return Long.parseLong(c.strings[mPos].trim());
+                } catch (NumberFormatException e) {
+                    return (long) parseDouble(c.strings[mPos]);
+                }
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Column c = mColumns[column];
+        switch (getType(column)) {
+            case FIELD_TYPE_INTEGER:
+                return c.longs[mPos];
+            case FIELD_TYPE_FLOAT:
+                return c.doubles[mPos];
+            case FIELD_TYPE_STRING:
+                return parseDouble(c.strings[mPos]);
+            default:
+                return 0;
+        }
+    }
+
+    private static double parseDouble(String s) {
+        try {
+            return Double.parseDouble(s.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        Column c = mColumns[column];
+        switch (getType(column)) {
+            case FIELD_TYPE_BLOB:
+                return c.blobs[mPos];
+            case FIELD_TYPE_NULL:
+                return null;
+            default:
+                throw new IllegalStateException("column " + column + " is not a blob");
+        }
+    }
+}
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.gallery3d.app.GalleryApp;
@@ -36,6 +37,7 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 // DataManager manages all media sets and media items in the system.
 //
@@ -65,6 +67,8 @@ public class DataManager implements StitchingChangeListener {
     // Any one who would like to access data should require this lock
     // to prevent concurrency issue.
     public static final Object LOCK = new Object();
+    // To sort all the items of a set, MediaSnapshot.getDateTakenOrder() gives
+    // the same order without comparing MediaItems.
     public static final Comparator<MediaItem> sDateTakenComparator =
             new DateTakenComparator();
     private static final String TAG = "DataManager";
@@ -82,11 +86,17 @@ public class DataManager implements StitchingChangeListener {
     private static final String TOP_LOCAL_IMAGE_SET_PATH = "/local/image";
 
     private static final String TOP_LOCAL_VIDEO_SET_PATH = "/local/video";
+    // Content changes of a uri are delivered at most once per this window.
+    private static final long DEFAULT_NOTIFY_WINDOW_MS = 300;
+
     private final Handler mDefaultMainHandler;
     private final GalleryApp mApplication;
     private int mActiveCount = 0;
     private final HashMap<Uri, NotifyBroker> mNotifierMap =
             new HashMap<>();
+    private volatile long mNotifyWindowMs = DEFAULT_NOTIFY_WINDOW_MS;
+    private final AtomicLong mDeliveredNotifyCount = new AtomicLong();
+    private final AtomicLong mSuppressedNotifyCount = new AtomicLong();
     private final HashMap<String, MediaSource> mSourceMap =
             new LinkedHashMap<>();
 
@@ -310,6 +320,22 @@ public class DataManager implements StitchingChangeListener {
         broker.registerNotifier(notifier);
     }
 
+    // Sets how often the content changes of a uri are delivered at most. Zero
+    // delivers every change as it comes.
+    public void setNotifyWindow(long windowMs) {
+        mNotifyWindowMs = windowMs;
+    }
+
+    // Returns the number of content changes delivered to the ChangeNotifiers.
+    public long getDeliveredNotifyCount() {
+        return mDeliveredNotifyCount.get();
+    }
+
+    // Returns the number of content changes merged into a delivered one.
+    public long getSuppressedNotifyCount() {
+        return mSuppressedNotifyCount.get();
+    }
+
     public void resume() {
         if (++mActiveCount == 1) {
             for (MediaSource source : mSourceMap.values()) {
@@ -354,12 +380,24 @@ public class DataManager implements StitchingChangeListener {
         }
     }
 
-    private static class NotifyBroker extends ContentObserver {
+    // NotifyBroker fans out the changes of one uri to its ChangeNotifiers. A
+    // change is delivered right away unless one was delivered less than the
+    // notify window ago. Then it's delivered at the end of the window,
+    // together with any other change in the meantime. So a burst of changes
+    // is delivered at most once per window, and the last change is never
+    // lost.
+    private class NotifyBroker extends ContentObserver {
         private final WeakHashMap<ChangeNotifier, Object> mNotifiers =
                 new WeakHashMap<>();
+        private final Handler mHandler;
+        private final Runnable mDeliverPending = this::deliverPending;
+        private boolean mHasDelivered;
+        private long mLastDeliveryTime;
+        private boolean mPending;
 
         public NotifyBroker(Handler handler) {
             super(handler);
+            mHandler = handler;
         }
 
         public synchronized void registerNotifier(ChangeNotifier notifier) {
@@ -368,6 +406,29 @@ public class DataManager implements StitchingChangeListener {
 
         @Override
         public synchronized void onChange(boolean selfChange) {
+            if (mPending) {
+                mSuppressedNotifyCount.incrementAndGet();
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            long window = mNotifyWindowMs;
+            if (!mHasDelivered || now - mLastDeliveryTime >= window) {
+                deliver(now);
+            } else {
+                mPending = true;
+                mHandler.postAtTime(mDeliverPending, mLastDeliveryTime + window);
+            }
+        }
+
+        private synchronized void deliverPending() {
+            mPending = false;
+            deliver(SystemClock.uptimeMillis());
+        }
+
+        private void deliver(long now) {
+            mHasDelivered = true;
+            mLastDeliveryTime = now;
+            mDeliveredNotifyCount.incrementAndGet();
             for (ChangeNotifier notifier : mNotifiers.keySet()) {
                 notifier.onChange();
             }
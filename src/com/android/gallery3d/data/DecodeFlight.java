@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2026, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.gallery3d.data;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.CancelListener;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// DecodeFlight lets the image cache requests that miss the cache for the same
+// (path, time modified, type) at the same time share one decode.
+//
+// The first request to join becomes the leader and decodes with the flight as
+// its JobContext; the others wait for its result. Every request can be
+// cancelled on its own: the flight only counts as cancelled once all of them
+// are, so the leader keeps decoding for the others even if its own caller
+// gave up.
+//
+// Each request gets its own bitmap, since callers recycle them. The last one
+// to take the result gets the decoded bitmap and the others get copies.
+class DecodeFlight implements JobContext {
+    private static final String TAG = "DecodeFlight";
+
+    private static final HashMap<Key, DecodeFlight> sFlights = new HashMap<>();
+
+    private final Key mKey;
+    private final JobContext mLeader;
+    private final ArrayList<JobContext> mMembers = new ArrayList<>(2);
+    private CancelListener mCancelListener;
+    private boolean mDone;
+    private Bitmap mResult;
+
+    private static class Key {
+        final Path path;
+        final long timeModified;
+        final int type;
+
+        Key(Path path, long timeModified, int type) {
+            this.path = path;
+            this.timeModified = timeModified;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            // Paths are unique objects.
+            return path == k.path && timeModified == k.timeModified
+                    && type == k.type;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = path.hashCode();
+            h = 31 * h + (int) (timeModified ^ (timeModified >>> 32));
+            return 31 * h + type;
+        }
+    }
+
+    private DecodeFlight(Key key, JobContext leader) {
+        mKey = key;
+        mLeader = leader;
+        mMembers.add(leader);
+    }
+
+    // Joins the decode in flight for the given image, or starts one with the
+    // caller as the leader. A flight all of whose members were cancelled is
+    // not joined, since its decode may already have stopped.
+    static DecodeFlight join(Path path, long timeModified, int type,
+            JobContext jc) {
+        DecodeFlight flight = findOrStart(new Key(path, timeModified, type), jc);
+        jc.setCancelListener(() -> flight.leave(jc));
+        return flight;
+    }
+
+    private static DecodeFlight findOrStart(Key key, JobContext jc) {
+        synchronized (sFlights) {
+            DecodeFlight flight = sFlights.get(key);
+            if (flight == null || !flight.add(jc)) {
+                flight = new DecodeFlight(key, jc);
+                sFlights.put(key, flight);
+            }
+            return flight;
+        }
+    }
+
+    boolean isLeader(JobContext jc) {
+        return jc == mLeader;
+    }
+
+    private synchronized boolean add(JobContext jc) {
+        if (mMembers.isEmpty()) return false;
+        mMembers.add(jc);
+        return true;
+    }
+
+    private void leave(JobContext jc) {
+        CancelListener listener = null;
+        synchronized (this) {
+            if (!mMembers.remove(jc)) return;
+            if (mMembers.isEmpty() && !mDone) listener = mCancelListener;
+            notifyAll();
+        }
+        if (listener != null) listener.onCancel();
+    }
+
+    // Called by the leader with the decoded bitmap, or null.
+    void finish(Bitmap bitmap) {
+        synchronized (sFlights) {
+            if (sFlights.get(mKey) == this) sFlights.remove(mKey);
+        }
+        synchronized (this) {
+            mDone = true;
+            mResult = bitmap;
+            notifyAll();
+        }
+    }
+
+    // Waits for the result. Returns null if the caller is cancelled first.
+    // The caller's job should return right after: a member other than the
+    // leader is left in MODE_NONE, since waiting for a CPU slot again would
+    // only delay a result that is already there.
+    Bitmap get(JobContext jc) {
+        Bitmap bitmap = null;
+        // Don't hold a CPU slot while another thread decodes.
+        if (!isLeader(jc)) jc.setMode(ThreadPool.MODE_NONE);
+        synchronized (this) {
+            while (!mDone && mMembers.contains(jc)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "ignore interrupt", e);
+                }
+            }
+            if (mDone && mMembers.remove(jc)) bitmap = take();
+        }
+        jc.setCancelListener(null);
+        return bitmap;
+    }
+
+    private Bitmap take() {
+        if (mResult == null || mMembers.isEmpty()) return mResult;
+        Bitmap.Config config = mResult.getConfig();
+        return mResult.copy(config != null ? config : Bitmap.Config.ARGB_8888, true);
+    }
+
+    // Below are the methods for JobContext, used by the leader's decode.
+    @Override
+    public synchronized boolean isCancelled() {
+        return mMembers.isEmpty();
+    }
+
+    @Override
+    public void setCancelListener(CancelListener listener) {
+        boolean cancelled;
+        synchronized (this) {
+            mCancelListener = listener;
+            cancelled = mMembers.isEmpty();
+        }
+        if (cancelled && listener != null) listener.onCancel();
+    }
+
+    @Override
+    public boolean setMode(int mode) {
+        return mLeader.setMode(mode);
+    }
+}
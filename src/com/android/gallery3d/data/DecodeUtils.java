@@ -32,6 +32,7 @@ import com.android.photos.data.GalleryBitmapPool;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public class DecodeUtils {
     private static final String TAG = "DecodeUtils";
@@ -79,6 +80,25 @@ public class DecodeUtils {
         options.inJustDecodeBounds = false;
     }
 
+    // Decodes the remaining bytes of the buffer. The position of the buffer
+    // is left unchanged, so it can be decoded again.
+    public static Bitmap decode(JobContext jc, ByteBuffer data, Options options) {
+        if (options == null) options = new Options();
+        jc.setCancelListener(new DecodeCanceller(options));
+        setOptionsMutable(options);
+        return ensureGLCompatibleBitmap(BitmapFactory.decodeStream(
+                new ByteBufferInputStream(data), null, options));
+    }
+
+    public static void decodeBounds(JobContext jc, ByteBuffer data,
+                                    Options options) {
+        Utils.assertTrue(options != null);
+        options.inJustDecodeBounds = true;
+        jc.setCancelListener(new DecodeCanceller(options));
+        BitmapFactory.decodeStream(new ByteBufferInputStream(data), null, options);
+        options.inJustDecodeBounds = false;
+    }
+
     public static Bitmap decodeThumbnail(
             JobContext jc, String filePath, Options options, int targetSize, int type) {
         FileInputStream fis = null;
@@ -279,6 +299,32 @@ public class DecodeUtils {
         }
     }
 
+    // This is the same as the method above except the source data comes
+    // from a ByteBuffer, e.g. a blob of the image cache.
+    public static Bitmap decodeUsingPool(JobContext jc, ByteBuffer data,
+                                         Options options) {
+        if (options == null) options = new BitmapFactory.Options();
+        if (options.inSampleSize < 1) options.inSampleSize = 1;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inBitmap = (options.inSampleSize == 1)
+                ? findCachedBitmap(jc, data, options) : null;
+        try {
+            Bitmap bitmap = decode(jc, data, options);
+            if (options.inBitmap != null && options.inBitmap != bitmap) {
+                GalleryBitmapPool.getInstance().put(options.inBitmap);
+                options.inBitmap = null;
+            }
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) throw e;
+
+            Log.w(TAG, "decode fail with a given bitmap, try decode to a new bitmap");
+            GalleryBitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
+            return decode(jc, data, options);
+        }
+    }
+
     private static Bitmap findCachedBitmap(JobContext jc, byte[] data,
                                            int offset, int length, Options options) {
         decodeBounds(jc, data, offset, length, options);
@@ -291,6 +337,48 @@ public class DecodeUtils {
         return GalleryBitmapPool.getInstance().get(options.outWidth, options.outHeight);
     }
 
+    private static Bitmap findCachedBitmap(JobContext jc, ByteBuffer data,
+                                           Options options) {
+        decodeBounds(jc, data, options);
+        return GalleryBitmapPool.getInstance().get(options.outWidth, options.outHeight);
+    }
+
+    // Streams a ByteBuffer to BitmapFactory without copying it to a byte
+    // array first. Reads from a duplicate, so the source is not consumed.
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuf;
+
+        public ByteBufferInputStream(ByteBuffer buf) {
+            mBuf = buf.duplicate();
+        }
+
+        @Override
+        public int read() {
+            if (!mBuf.hasRemaining()) return -1;
+            return mBuf.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (!mBuf.hasRemaining()) return -1;
+            len = Math.min(len, mBuf.remaining());
+            mBuf.get(bytes, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.min(Math.max(n, 0), mBuf.remaining());
+            mBuf.position(mBuf.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuf.remaining();
+        }
+    }
+
     private static class DecodeCanceller implements CancelListener {
         Options mOptions;
 
@@ -24,10 +24,12 @@ import android.util.Log;
 
 import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.common.BitmapUtils;
-import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
+import com.android.gallery3d.common.BlobCache;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
+import java.nio.ByteBuffer;
+
 abstract class ImageCacheRequest implements Job<Bitmap> {
     private static final String TAG = "ImageCacheRequest";
 
@@ -62,6 +64,12 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
                         (mType == MediaItem.TYPE_MICROTHUMBNAIL) ? "MICROTHUMB" : "?");
     }
 
+    // Returns whether run() would find the image in the cache.
+    boolean isCached() {
+        return mApplication.getImageCacheService().hasImageData(
+                mPath, mTimeModified, mType);
+    }
+
     @Override
     public Bitmap run(JobContext jc) {
 //        if (!TextUtils.isEmpty(mFilePath) && !TextUtils.isEmpty(mMimeType)
@@ -74,28 +82,39 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
 
         ImageCacheService cacheService = mApplication.getImageCacheService();
 
-        BytesBuffer buffer = MediaItem.getBytesBufferPool().get();
-        try {
-            boolean found = cacheService.getImageData(mPath, mTimeModified, mType, buffer);
+        // Decode from the cache's per-thread buffer, so a cache hit doesn't
+        // allocate a buffer for the blob.
+        CachedImageDecoder decoder = new CachedImageDecoder(jc);
+        if (cacheService.getImageData(mPath, mTimeModified, mType, decoder)) {
             if (jc.isCancelled()) return null;
-            if (found) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                Bitmap bitmap;
-                if (mType == MediaItem.TYPE_MICROTHUMBNAIL) {
-                    bitmap = DecodeUtils.decodeUsingPool(jc,
-                            buffer.data, buffer.offset, buffer.length, options);
-                } else {
-                    bitmap = DecodeUtils.decodeUsingPool(jc,
-                            buffer.data, buffer.offset, buffer.length, options);
-                }
-                if (bitmap == null && !jc.isCancelled()) {
-                    Log.w(TAG, "decode cached failed " + debugTag());
-                }
-                return bitmap;
+            if (decoder.mBitmap == null) {
+                Log.w(TAG, "decode cached failed " + debugTag());
+            }
+            return decoder.mBitmap;
+        }
+        if (jc.isCancelled()) return null;
+
+        // Requests for the same image that miss the cache together share the
+        // decode of the first one.
+        DecodeFlight flight = DecodeFlight.join(mPath, mTimeModified, mType, jc);
+        if (flight.isLeader(jc)) {
+            Bitmap bitmap = null;
+            try {
+                bitmap = decodeAndCache(flight, cacheService);
+            } finally {
+                // Never leave the others waiting, even if the decode throws.
+                flight.finish(bitmap);
             }
-        } finally {
-            MediaItem.getBytesBufferPool().recycle(buffer);
+        }
+        return flight.get(jc);
+    }
+
+    private Bitmap decodeAndCache(JobContext jc, ImageCacheService cacheService) {
+        // A flight that just finished may have filled the cache after our
+        // lookup above.
+        CachedImageDecoder decoder = new CachedImageDecoder(jc);
+        if (cacheService.getImageData(mPath, mTimeModified, mType, decoder)) {
+            return jc.isCancelled() ? null : decoder.mBitmap;
         }
 
         Bitmap bitmap = onDecodeOriginal(jc, mType);
@@ -120,5 +139,23 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
         return bitmap;
     }
 
+    private static class CachedImageDecoder implements BlobCache.BlobReader {
+        private final JobContext mJobContext;
+        Bitmap mBitmap;
+
+        CachedImageDecoder(JobContext jc) {
+            mJobContext = jc;
+        }
+
+        @Override
+        public boolean read(ByteBuffer data) {
+            if (mJobContext.isCancelled()) return true;
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            mBitmap = DecodeUtils.decodeUsingPool(mJobContext, data, options);
+            return true;
+        }
+    }
+
     public abstract Bitmap onDecodeOriginal(JobContext jc, int targetSize);
 }
@@ -17,45 +17,180 @@
 package com.android.gallery3d.data;
 
 import android.content.Context;
+import android.os.StatFs;
+import android.util.Log;
 
 import com.android.gallery3d.common.BlobCache;
-import com.android.gallery3d.common.BlobCache.LookupRequest;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
 import com.android.gallery3d.util.CacheManager;
-import com.android.gallery3d.util.GalleryUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class ImageCacheService {
-    @SuppressWarnings("unused")
     private static final String TAG = "ImageCacheService";
 
-    private static final String IMAGE_CACHE_FILE = "imgcache";
-    private static final int IMAGE_CACHE_MAX_ENTRIES = 5000;
-    private static final int IMAGE_CACHE_MAX_BYTES = 200 * 1024 * 1024;
-    private static final int IMAGE_CACHE_VERSION = 7;
+    // The cache used to be a single BlobCache with this name.
+    private static final String LEGACY_IMAGE_CACHE_FILE = "imgcache";
 
-    private final BlobCache mCache;
+    // Each thumbnail type has its own set of BlobCache shards, so the many
+    // small micro thumbnails and the larger thumbnails don't evict each
+    // other. A key always maps to the same shard of its type.
+    private static final int SHARD_COUNT = 4;
+    // Byte budgets per type (for all shards of a region) are sized to this
+    // fraction of the free space in the cache directory, within the bounds
+    // below. The entry budgets follow from the expected blob sizes.
+    private static final int FREE_SPACE_FRACTION = 20;
+    private static final int MIN_SHARD_ENTRIES = 256;
+    // Version 8 switched to binary keys. BlobCache discards the files of
+    // any other version when they are opened.
+    private static final int IMAGE_CACHE_VERSION = 8;
+    private static final int KEY_CHECK_SIZE = 8;
+
+    private final Context mContext;
+    private final CacheGroup mThumbnailCache = new CacheGroup("imgcache_thumb",
+            200 * 1024 * 1024, 800 * 1024 * 1024, 64 * 1024);
+    private final CacheGroup mMicroThumbnailCache = new CacheGroup(
+            "imgcache_micro", 32 * 1024 * 1024, 128 * 1024 * 1024, 12 * 1024);
+    private boolean mLegacyFilesDeleted;
+
+    private static class CacheGroup {
+        final String name;
+        final long minBytes;
+        final long maxBytes;
+        final int blobSize;
+        final AtomicReferenceArray<BlobCache> shards =
+                new AtomicReferenceArray<>(SHARD_COUNT);
+        final boolean[] failed = new boolean[SHARD_COUNT];
+        int shardBytes;
+        int shardEntries;
+
+        CacheGroup(String name, long minBytes, long maxBytes, int blobSize) {
+            this.name = name;
+            this.minBytes = minBytes;
+            this.maxBytes = maxBytes;
+            this.blobSize = blobSize;
+        }
+    }
 
     public ImageCacheService(Context context) {
-        mCache = CacheManager.getCache(context, IMAGE_CACHE_FILE,
-                IMAGE_CACHE_MAX_ENTRIES, IMAGE_CACHE_MAX_BYTES,
-                IMAGE_CACHE_VERSION);
+        mContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+    }
+
+    // Returns the shard holding the given key, or null if the cache is not
+    // available. Shards are opened on first use.
+    private BlobCache getCache(int type, long cacheKey) {
+        CacheGroup group = (type == MediaItem.TYPE_MICROTHUMBNAIL)
+                ? mMicroThumbnailCache : mThumbnailCache;
+        // BlobCache uses the low bits of the key for its hash slots.
+        int shard = (int) ((cacheKey >>> 33) % SHARD_COUNT);
+        BlobCache cache = group.shards.get(shard);
+        return cache != null ? cache : openShard(group, shard);
+    }
+
+    private synchronized BlobCache openShard(CacheGroup group, int shard) {
+        BlobCache cache = group.shards.get(shard);
+        if (cache != null || group.failed[shard]) return cache;
+
+        File cacheDir = mContext.getCacheDir();
+        if (!mLegacyFilesDeleted) {
+            mLegacyFilesDeleted = true;
+            if (cacheDir != null) {
+                BlobCache.deleteFiles(cacheDir.getAbsolutePath() + "/"
+                        + LEGACY_IMAGE_CACHE_FILE);
+            }
+        }
+        if (group.shardBytes == 0) {
+            long bytes = group.minBytes;
+            if (cacheDir != null) {
+                try {
+                    StatFs stat = new StatFs(cacheDir.getAbsolutePath());
+                    bytes = stat.getAvailableBytes() / FREE_SPACE_FRACTION;
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "cannot stat cache dir", e);
+                }
+            }
+            bytes = Utils.clamp(bytes, group.minBytes, group.maxBytes);
+            group.shardBytes = (int) (bytes / SHARD_COUNT);
+            // A region flips at 50% hash load, hence the factor 2.
+            group.shardEntries = Math.max(MIN_SHARD_ENTRIES,
+                    group.shardBytes / group.blobSize * 2);
+        }
+
+        cache = CacheManager.getCache(mContext, group.name + "_" + shard,
+                group.shardEntries, group.shardBytes, IMAGE_CACHE_VERSION);
+        if (cache == null) {
+            group.failed[shard] = true;
+            return null;
+        }
+        // Keep thumbnails that are still being looked at across flips.
+        cache.setEvictionPolicy(BlobCache.EVICTION_SECOND_CHANCE);
+        group.shards.set(shard, cache);
+        return cache;
+    }
+
+    /**
+     * Returns the hit/miss/eviction counters summed over all opened shards
+     * of the image cache.
+     */
+    public BlobCache.Stats getStats() {
+        BlobCache.Stats total = new BlobCache.Stats();
+        for (CacheGroup group : new CacheGroup[] {
+                mThumbnailCache, mMicroThumbnailCache}) {
+            for (int i = 0; i < SHARD_COUNT; i++) {
+                BlobCache cache = group.shards.get(i);
+                if (cache == null) continue;
+                BlobCache.Stats stats = cache.getStats();
+                total.hits += stats.hits;
+                total.misses += stats.misses;
+                total.inserts += stats.inserts;
+                total.promotions += stats.promotions;
+                total.evictions += stats.evictions;
+                total.flips += stats.flips;
+                total.activeEntries += stats.activeEntries;
+                total.inactiveEntries += stats.inactiveEntries;
+            }
+        }
+        return total;
     }
 
-    private static byte[] makeKey(Path path, long timeModified, int type) {
-        return GalleryUtils.getBytes(path.toString() + "+" + timeModified + "+" + type);
+    // A cache entry is identified by a fixed-width binary key: the 128-bit
+    // fingerprint of the path, the modification time and the type. The key
+    // is hashed into two 64-bit halves. The first one is the BlobCache key,
+    // which BlobCache verifies against the blob header. The second one is
+    // stored in the first KEY_CHECK_SIZE bytes of the blob and checked here.
+    private static long makeKey(Path path, long timeModified, int type) {
+        return mix64(path.getFingerprintHigh()
+                ^ mix64(timeModified ^ ((long) type << 56)));
     }
 
-    private static boolean isSameKey(byte[] key, byte[] buffer) {
-        int n = key.length;
-        if (buffer.length < n) {
+    private static long makeKeyCheck(Path path, long timeModified, int type) {
+        return mix64(path.getFingerprintLow()
+                ^ mix64(~timeModified ^ ((long) type << 48)));
+    }
+
+    // The finalizer of MurmurHash3.
+    private static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static boolean isSameKey(long check, ByteBuffer buffer) {
+        if (buffer.remaining() < KEY_CHECK_SIZE) {
             return false;
         }
-        for (int i = 0; i < n; ++i) {
-            if (key[i] != buffer[i]) {
+        int base = buffer.position();
+        for (int i = 0; i < KEY_CHECK_SIZE; ++i) {
+            if (buffer.get(base + i) != (byte) (check >>> (i * 8))) {
                 return false;
             }
         }
@@ -68,31 +203,78 @@ public class ImageCacheService {
      * <p>
      * The image data will be stored in <code>buffer.data</code>, started from
      * <code>buffer.offset</code> for <code>buffer.length</code> bytes. If the
-     * buffer.data is not big enough, a new byte array will be allocated and returned.
+     * buffer.data is not big enough, it is swapped for a large enough array
+     * from the buffer's pool. The data is copied in a single transfer.
      *
      * @return true if the image data is found; false if not found.
      */
-    public boolean getImageData(Path path, long timeModified, int type, BytesBuffer buffer) {
-        if (mCache == null) return false;
-
-        byte[] key = makeKey(path, timeModified, type);
-        long cacheKey = Utils.crc64Long(key);
-        try {
-            LookupRequest request = new LookupRequest();
-            request.key = cacheKey;
-            request.buffer = buffer.data;
-            if (mCache == null) {
-                return false;
-            }
-            synchronized (mCache) {
-                if (!mCache.lookup(request)) return false;
-            }
-            if (isSameKey(key, request.buffer)) {
-                buffer.data = request.buffer;
-                buffer.offset = key.length;
-                buffer.length = request.length - buffer.offset;
+    public boolean getImageData(Path path, long timeModified, int type,
+            final BytesBuffer buffer) {
+        return getImageData(path, timeModified, type, new BlobCache.BlobReader() {
+            @Override
+            public boolean read(ByteBuffer data) {
+                int length = data.remaining();
+                buffer.ensureCapacity(length);
+                data.get(buffer.data, 0, length);
+                buffer.offset = 0;
+                buffer.length = length;
                 return true;
             }
+        });
+    }
+
+    /**
+     * Allocation-free version of
+     * {@link #getImageData(Path, long, int, BytesBuffer)}.
+     * <p>
+     * The cached image data is passed to <code>reader</code> as a read-only
+     * view of a per-thread buffer, starting after the key. The view is only
+     * valid until the reader returns. No lock of the cache is held while the
+     * reader runs.
+     *
+     * @return true if the image data is found and accepted by the reader.
+     */
+    public boolean getImageData(Path path, long timeModified, int type,
+            final BlobCache.BlobReader reader) {
+        long cacheKey = makeKey(path, timeModified, type);
+        BlobCache cache = getCache(type, cacheKey);
+        if (cache == null) return false;
+
+        final long check = makeKeyCheck(path, timeModified, type);
+        try {
+            return cache.lookup(cacheKey, new BlobCache.BlobReader() {
+                @Override
+                public boolean read(ByteBuffer blob) {
+                    if (!isSameKey(check, blob)) return false;
+                    blob.position(KEY_CHECK_SIZE);
+                    return reader.read(blob.slice());
+                }
+            });
+        } catch (IOException ex) {
+            // ignore.
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the image data for the given <code>path</code>,
+     * <code>timeModified</code> and <code>type</code> is cached, without
+     * reading it. Unlike getImageData(), this doesn't count in the stats nor
+     * keep the entry from being evicted.
+     */
+    public boolean hasImageData(Path path, long timeModified, int type) {
+        long cacheKey = makeKey(path, timeModified, type);
+        BlobCache cache = getCache(type, cacheKey);
+        if (cache == null) return false;
+
+        final long check = makeKeyCheck(path, timeModified, type);
+        try {
+            return cache.peek(cacheKey, new BlobCache.BlobReader() {
+                @Override
+                public boolean read(ByteBuffer blob) {
+                    return isSameKey(check, blob);
+                }
+            });
         } catch (IOException ex) {
             // ignore.
         }
@@ -100,39 +282,30 @@ public class ImageCacheService {
     }
 
     public void putImageData(Path path, long timeModified, int type, byte[] value) {
-        if (mCache == null) return;
+        long cacheKey = makeKey(path, timeModified, type);
+        BlobCache cache = getCache(type, cacheKey);
+        if (cache == null) return;
 
-        byte[] key = makeKey(path, timeModified, type);
-        long cacheKey = Utils.crc64Long(key);
-        ByteBuffer buffer = ByteBuffer.allocate(key.length + value.length);
-        buffer.put(key);
+        ByteBuffer buffer = ByteBuffer.allocate(KEY_CHECK_SIZE + value.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(makeKeyCheck(path, timeModified, type));
         buffer.put(value);
-        if (mCache == null) {
-            return;
-        }
-        synchronized (mCache) {
-            try {
-                mCache.insert(cacheKey, buffer.array());
-            } catch (IOException ex) {
-                // ignore.
-            }
+        try {
+            cache.insert(cacheKey, buffer.array());
+        } catch (IOException ex) {
+            // ignore.
         }
     }
 
     public void clearImageData(Path path, long timeModified, int type) {
-        if (mCache == null) return;
+        long cacheKey = makeKey(path, timeModified, type);
+        BlobCache cache = getCache(type, cacheKey);
+        if (cache == null) return;
 
-        byte[] key = makeKey(path, timeModified, type);
-        long cacheKey = Utils.crc64Long(key);
-        if (mCache == null) {
-            return;
-        }
-        synchronized (mCache) {
-            try {
-                mCache.clearEntry(cacheKey);
-            } catch (IOException ex) {
-                // ignore.
-            }
+        try {
+            cache.clearEntry(cacheKey);
+        } catch (IOException ex) {
+            // ignore.
         }
     }
 }
@@ -38,6 +38,7 @@ import org.codeaurora.gallery.R;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 
 // LocalAlbumSet lists all media items in one bucket on local storage.
 // The media items need to be all images or all videos, but not both.
@@ -59,6 +60,8 @@ public class LocalAlbum extends MediaSet {
     private final ChangeNotifier mNotifier;
     private final Path mItemPath;
     private int mCachedCount = INVALID_COUNT;
+    // The MediaIndex generation mCachedCount was taken from, or -1.
+    private int mCountGeneration = -1;
 
     public LocalAlbum(Path path, GalleryApp application, int bucketId,
                       boolean isImage, String name) {
@@ -100,20 +103,29 @@ public class LocalAlbum extends MediaSet {
                 bucketId));
     }
 
-    private static MediaItem loadOrUpdateItem(Path path, Cursor cursor,
-                                              DataManager dataManager, GalleryApp app, boolean isImage) {
+    // Creates or updates the items for all the rows of the snapshot, in one
+    // pass under DataManager.LOCK. The rows are read from the database
+    // before, so nothing slow happens while holding the lock.
+    private static void loadOrUpdateItems(Path[] paths, CursorSnapshot rows,
+            MediaItem[] result, int[] resultIndex, DataManager dataManager,
+            GalleryApp app, boolean isImage) {
+        int n = rows.getCount();
         synchronized (DataManager.LOCK) {
-            LocalMediaItem item = (LocalMediaItem) dataManager.peekMediaObject(path);
-            if (item == null) {
-                if (isImage) {
-                    item = new LocalImage(path, app, cursor);
+            for (int i = 0; i < n; i++) {
+                rows.moveToPosition(i);
+                LocalMediaItem item =
+                        (LocalMediaItem) dataManager.peekMediaObject(paths[i]);
+                if (item == null) {
+                    if (isImage) {
+                        item = new LocalImage(paths[i], app, rows);
+                    } else {
+                        item = new LocalVideo(paths[i], app, rows);
+                    }
                 } else {
-                    item = new LocalVideo(path, app, cursor);
+                    item.updateContent(rows);
                 }
-            } else {
-                item.updateContent(cursor);
+                result[resultIndex == null ? i : resultIndex[i]] = item;
             }
-            return item;
         }
     }
 
@@ -149,10 +161,14 @@ public class LocalAlbum extends MediaSet {
             Log.w(TAG, "query fail" + baseUri);
             return result;
         }
+        int n = ids.size();
+        CursorSnapshot rows = new CursorSnapshot(cursor.getColumnNames(), n);
+        Path[] paths = new Path[n];
+        int[] resultIndex = new int[n];
         try {
-            int n = ids.size();
             int i = 0;
 
+            loop:
             while (i < n && cursor.moveToNext()) {
                 int id = cursor.getInt(0);  // _id must be in the first column
 
@@ -163,20 +179,21 @@ public class LocalAlbum extends MediaSet {
 
                 while (ids.get(i) < id) {
                     if (++i >= n) {
-                        return result;
+                        break loop;
                     }
                 }
 
-                Path childPath = itemPath.getChild(id);
-                MediaItem item = loadOrUpdateItem(childPath, cursor, dataManager,
-                        application, isImage);
-                result[i] = item;
+                paths[rows.getCount()] = itemPath.getChild(id);
+                resultIndex[rows.getCount()] = i;
+                rows.addRow(cursor);
                 ++i;
             }
-            return result;
         } finally {
             cursor.close();
         }
+        loadOrUpdateItems(paths, rows, result, resultIndex, dataManager,
+                application, isImage);
+        return result;
     }
 
     public static Cursor getItemCursor(ContentResolver resolver, Uri uri,
@@ -270,23 +287,55 @@ public class LocalAlbum extends MediaSet {
             return list;
         }
 
+        CursorSnapshot rows;
+        Path[] paths;
         try {
-            while (cursor.moveToNext()) {
+            int n = cursor.getCount();
+            rows = new CursorSnapshot(cursor.getColumnNames(), n);
+            paths = new Path[n];
+            while (cursor.moveToNext() && rows.getCount() < n) {
                 int id = cursor.getInt(0);  // _id must be in the first column
-                Path childPath = mItemPath.getChild(id);
-                MediaItem item = loadOrUpdateItem(childPath, cursor,
-                        dataManager, mApplication, mIsImage);
-                list.add(item);
+                paths[rows.getCount()] = mItemPath.getChild(id);
+                rows.addRow(cursor);
             }
         } finally {
             cursor.close();
         }
+        MediaItem[] items = new MediaItem[rows.getCount()];
+        loadOrUpdateItems(paths, rows, items, null, dataManager,
+                mApplication, mIsImage);
+        Collections.addAll(list, items);
         return list;
     }
 
+    private int getIndexMediaType() {
+        return mIsImage ? MEDIA_TYPE_IMAGE : MEDIA_TYPE_VIDEO;
+    }
+
+    @Override
+    public MediaItem getCoverMediaItem() {
+        // Avoid the query if the cover item is still in memory.
+        int coverId = MediaIndex.getInstance(mApplication)
+                .getCoverId(mBucketId, getIndexMediaType());
+        if (coverId != -1) {
+            MediaObject cover = mApplication.getDataManager()
+                    .peekMediaObject(mItemPath.getChild(coverId));
+            if (cover != null) return (MediaItem) cover;
+        }
+        return super.getCoverMediaItem();
+    }
+
     @Override
     public int getMediaItemCount() {
         if (mCachedCount == INVALID_COUNT) {
+            MediaIndex index = MediaIndex.getInstance(mApplication);
+            int generation = index.getGeneration();
+            int count = index.getCount(mBucketId, getIndexMediaType());
+            if (count != -1) {
+                mCachedCount = count;
+                mCountGeneration = generation;
+                return count;
+            }
             Cursor cursor;
             if (mBucketId == -1) {
                 cursor = mResolver.query(mBaseUri, COUNT_PROJECTION,
@@ -317,9 +366,14 @@ public class LocalAlbum extends MediaSet {
 
     @Override
     public long reload() {
-        if (mNotifier.isDirty()) {
+        // A count from the media index is also out of date when the index has
+        // changed since.
+        boolean indexChanged = mCountGeneration != -1 && mCountGeneration
+                != MediaIndex.getInstance(mApplication).getGeneration();
+        if (mNotifier.isDirty() || indexChanged) {
             mDataVersion = nextVersionNumber();
             mCachedCount = INVALID_COUNT;
+            mCountGeneration = -1;
         }
         return mDataVersion;
     }
@@ -53,6 +53,7 @@ public class LocalAlbumSet extends MediaSet
     private final Handler mHandler;
     private ArrayList<MediaSet> mAlbums = new ArrayList<>();
     private boolean mIsLoading;
+    private boolean mShownFromIndex;
 
     private Future<ArrayList<MediaSet>> mLoadTask;
     private ArrayList<MediaSet> mLoadBuffer;
@@ -136,6 +137,19 @@ public class LocalAlbumSet extends MediaSet
     //   1. Prevent calling reload() concurrently.
     //   2. Prevent calling onFutureDone() and reload() concurrently
     public synchronized long reload() {
+        // Until the first load finishes, show the albums saved in the media
+        // index. The loader brings the index up to date.
+        if (!mShownFromIndex) {
+            mShownFromIndex = true;
+            if (mAlbums.isEmpty() && mLoadBuffer == null) {
+                BucketEntry[] entries = MediaIndex.getInstance(mApplication)
+                        .getBucketEntries(mType);
+                if (entries.length > 0) {
+                    mAlbums = createAlbums(entries);
+                    mDataVersion = nextVersionNumber();
+                }
+            }
+        }
         if (mNotifier.isDirty()) {
             if (mLoadTask != null) mLoadTask.cancel();
             mIsLoading = true;
@@ -170,33 +184,32 @@ public class LocalAlbumSet extends MediaSet
 
         @Override
         public ArrayList<MediaSet> run(JobContext jc) {
-            // Note: it will be faster if we only select media_type and bucket_id.
-            //       need to test the performance if that is worth
-            BucketEntry[] entries = BucketHelper.loadBucketEntries(
-                    jc, mApplication.getContentResolver(), mType);
-
-            if (jc.isCancelled()) return null;
-
-            int offset = 0;
-            // Move camera and download bucket to the front, while keeping the
-            // order of others.
-            int index = findBucket(entries, MediaSetUtils.CAMERA_BUCKET_ID);
-            if (index != -1) {
-                circularShiftRight(entries, offset++, index);
-            }
-            index = findBucket(entries, MediaSetUtils.DOWNLOAD_BUCKET_ID);
-            if (index != -1) {
-                circularShiftRight(entries, offset++, index);
-            }
+            MediaIndex index = MediaIndex.getInstance(mApplication);
+            if (!index.reconcile(jc)) return null;
+            return createAlbums(index.getBucketEntries(mType));
+        }
+    }
 
-            ArrayList<MediaSet> albums = new ArrayList<>();
-            DataManager dataManager = mApplication.getDataManager();
-            for (BucketEntry entry : entries) {
-                MediaSet album = getLocalAlbum(dataManager,
-                        mType, mPath, entry.bucketId, entry.bucketName);
-                albums.add(album);
-            }
-            return albums;
+    private ArrayList<MediaSet> createAlbums(BucketEntry[] entries) {
+        int offset = 0;
+        // Move camera and download bucket to the front, while keeping the
+        // order of others.
+        int index = findBucket(entries, MediaSetUtils.CAMERA_BUCKET_ID);
+        if (index != -1) {
+            circularShiftRight(entries, offset++, index);
+        }
+        index = findBucket(entries, MediaSetUtils.DOWNLOAD_BUCKET_ID);
+        if (index != -1) {
+            circularShiftRight(entries, offset++, index);
+        }
+
+        ArrayList<MediaSet> albums = new ArrayList<>();
+        DataManager dataManager = mApplication.getDataManager();
+        for (BucketEntry entry : entries) {
+            MediaSet album = getLocalAlbum(dataManager,
+                    mType, mPath, entry.bucketId, entry.bucketName);
+            albums.add(album);
         }
+        return albums;
     }
 }
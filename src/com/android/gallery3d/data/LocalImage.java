@@ -334,13 +334,13 @@ public class LocalImage extends LocalMediaItem {
 
             int targetSize = MediaItem.getTargetSize(type);
 
-            // try to decode from JPEG EXIF
+            // Try the thumbnail embedded in the JPEG EXIF first. Only the
+            // APP1 segment is read, so this costs little when it turns out
+            // missing or too small.
             if (type == MediaItem.TYPE_MICROTHUMBNAIL) {
-                ExifInterface exif = new ExifInterface();
                 byte[] thumbData = null;
                 try {
-                    exif.readExif(mLocalFilePath);
-                    thumbData = exif.getThumbnail();
+                    thumbData = new ExifInterface().readThumbnail(mLocalFilePath);
                 } catch (FileNotFoundException e) {
                     Log.w(TAG, "failed to find file to read thumbnail: " + mLocalFilePath);
                 } catch (IOException e) {
@@ -17,12 +17,14 @@
 package com.android.gallery3d.data;
 
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.MediaStore;
+import android.util.Log;
 
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.SortedMap;
+import java.util.Map;
 import java.util.TreeMap;
 
 // MergeAlbum merges items from two or more MediaSets. It uses a Comparator to
@@ -30,6 +32,14 @@ import java.util.TreeMap;
 // media sets (with the same order that the Comparator uses).
 //
 // This only handles MediaItems, not SubMediaSets.
+//
+// The merge index is kept across changes of the sources. When a source
+// changes, its first page is compared with the one seen before to find where
+// items were inserted or deleted, and the marks after that point are moved
+// accordingly. Each mark also remembers, for every source, the last item the
+// merge took from it and the next one. A mark stays right as long as these
+// are still next to each other at the mark's positions, so a mark that a
+// change made wrong is found and dropped when it's used.
 public class LocalMergeAlbum extends MediaSet implements ContentListener {
     @SuppressWarnings("unused")
     private static final String TAG = "LocalMergeAlbum";
@@ -38,12 +48,50 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
     private final Comparator<MediaItem> mComparator;
     private final MediaSet[] mSources;
 
-    private FetchCache[] mFetcher;
+    private final FetchCache[] mFetcher;
     private int mSupportedOperation;
     private final int mBucketId;
 
+    // The data version, item count and the paths of the first page of each
+    // source, as of the last change applied to the index.
+    private final long[] mSourceVersion;
+    private final int[] mSourceCount;
+    private final Path[][] mSourceHead;
+    private final boolean[] mSourceChanged;
+
     // mIndex maps global position to the position of each underlying media sets.
-    private final TreeMap<Integer, int[]> mIndex = new TreeMap<>();
+    private TreeMap<Integer, Mark> mIndex = new TreeMap<>();
+
+    private static class Mark {
+        final int[] subPos;
+        // The paths of the items at subPos - 1 and at subPos, null before the
+        // start or past the end of a source. The mark at position 0 has none
+        // and is always valid.
+        final Path[] last;
+        final Path[] next;
+
+        Mark(int[] subPos, Path[] last, Path[] next) {
+            this.subPos = subPos;
+            this.last = last;
+            this.next = next;
+        }
+
+        // An item inserted or deleted between the last and the next item of
+        // a source may belong on either side of the mark, so the mark only
+        // holds if both are where they were.
+        boolean matches(MediaItem[] prev, MediaItem[] slot) {
+            if (next == null) return true;
+            for (int i = 0; i < slot.length; i++) {
+                if (pathOf(prev[i]) != last[i]) return false;
+                if (pathOf(slot[i]) != next[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    private static Path pathOf(MediaItem item) {
+        return item == null ? null : item.getPath();
+    }
 
     public LocalMergeAlbum(
             Path path, Comparator<MediaItem> comparator, MediaSet[] sources, int bucketId) {
@@ -51,6 +99,17 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
         mComparator = comparator;
         mSources = sources;
         mBucketId = bucketId;
+        int n = sources.length;
+        mFetcher = new FetchCache[n];
+        mSourceVersion = new long[n];
+        mSourceCount = new int[n];
+        mSourceHead = new Path[n][];
+        mSourceChanged = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            mFetcher[i] = new FetchCache(sources[i]);
+            mSourceVersion[i] = INVALID_DATA_VERSION;
+        }
+        mIndex.put(0, new Mark(new int[n], null, null));
         for (MediaSet set : mSources) {
             set.addContentListener(this);
         }
@@ -67,24 +126,74 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
     }
 
     private void updateData() {
-        ArrayList<MediaSet> matches = new ArrayList<>();
         int supported = mSources.length == 0 ? 0 : MediaItem.SUPPORT_ALL;
-        mFetcher = new FetchCache[mSources.length];
-        for (int i = 0, n = mSources.length; i < n; ++i) {
-            mFetcher[i] = new FetchCache(mSources[i]);
-            supported &= mSources[i].getSupportedOperations();
+        for (MediaSet source : mSources) {
+            supported &= source.getSupportedOperations();
         }
         mSupportedOperation = supported;
-        mIndex.clear();
-        mIndex.put(0, new int[mSources.length]);
     }
 
-    private void invalidateCache() {
-        for (int i = 0, n = mSources.length; i < n; i++) {
-            mFetcher[i].invalidate();
+    // Brings the index up to date with the sources that changed since the
+    // last call. Returns true if any did.
+    private boolean applySourceChanges() {
+        boolean changed = false;
+        for (int k = 0, n = mSources.length; k < n; k++) {
+            if (!mSourceChanged[k]) continue;
+            mSourceChanged[k] = false;
+            changed = true;
+            ArrayList<MediaItem> head = mFetcher[k].reloadHead();
+            Path[] newHead = new Path[head.size()];
+            for (int i = 0; i < newHead.length; i++) {
+                newHead[i] = head.get(i).getPath();
+            }
+            int newCount = mSources[k].getMediaItemCount();
+            if (mSourceHead[k] == null) {
+                // Nothing is known about the previous content.
+                TreeMap<Integer, Mark> index = new TreeMap<>();
+                index.put(0, mIndex.get(0));
+                mIndex = index;
+            } else {
+                updateIndex(k, mSourceHead[k], newHead,
+                        newCount - mSourceCount[k]);
+            }
+            mSourceHead[k] = newHead;
+            mSourceCount[k] = newCount;
         }
-        mIndex.clear();
-        mIndex.put(0, new int[mSources.length]);
+        return changed;
+    }
+
+    // Updates the marks for a change of source k. p is the first position
+    // where the source's first page differs. The change is taken to be delta
+    // items inserted (or deleted if negative) at p: marks that took fewer
+    // than p items from the source are unaffected, marks past the change are
+    // moved by delta, and the rest are dropped. If the change was something
+    // else, or further down than the first page, the marks it made wrong are
+    // caught by Mark.matches().
+    private void updateIndex(int k, Path[] oldHead, Path[] newHead, int delta) {
+        int n = Math.min(oldHead.length, newHead.length);
+        int p = 0;
+        while (p < n && oldHead[p] == newHead[p]) p++;
+        if (delta == 0 && p == n && oldHead.length == newHead.length) {
+            // The order in the first page is unchanged; only the content of
+            // items has changed, or the change is further down.
+            return;
+        }
+
+        TreeMap<Integer, Mark> index = new TreeMap<>();
+        for (Map.Entry<Integer, Mark> entry : mIndex.entrySet()) {
+            Mark mark = entry.getValue();
+            int pos = mark.subPos[k];
+            if (entry.getKey() == 0 || pos < p) {
+                index.put(entry.getKey(), mark);
+            } else if (pos > p && pos + delta >= p
+                    && entry.getKey() + delta > 0) {
+                int[] subPos = mark.subPos.clone();
+                subPos[k] += delta;
+                index.put(entry.getKey() + delta,
+                        new Mark(subPos, mark.last, mark.next));
+            }
+        }
+        mIndex = index;
     }
 
     @Override
@@ -107,18 +216,29 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
 
     @Override
     public ArrayList<MediaItem> getMediaItem(int start, int count) {
-
-        // First find the nearest mark position <= start.
-        SortedMap<Integer, int[]> head = mIndex.headMap(start + 1);
-        int markPos = head.lastKey();
-        int[] subPos = head.get(markPos).clone();
-        MediaItem[] slot = new MediaItem[mSources.length];
+        long startTime = SystemClock.uptimeMillis();
+        boolean changed = applySourceChanges();
 
         int size = mSources.length;
-
-        // fill all slots
-        for (int i = 0; i < size; i++) {
-            slot[i] = mFetcher[i].getItem(subPos[i]);
+        MediaItem[] slot = new MediaItem[size];
+        // The item last taken from each source.
+        MediaItem[] prev = new MediaItem[size];
+        int markPos;
+        int[] subPos;
+        while (true) {
+            // First find the nearest mark position <= start.
+            Map.Entry<Integer, Mark> entry = mIndex.floorEntry(start);
+            markPos = entry.getKey();
+            subPos = entry.getValue().subPos.clone();
+
+            // fill all slots
+            for (int i = 0; i < size; i++) {
+                prev[i] = subPos[i] == 0
+                        ? null : mFetcher[i].getItem(subPos[i] - 1);
+                slot[i] = mFetcher[i].getItem(subPos[i]);
+            }
+            if (entry.getValue().matches(prev, slot)) break;
+            mIndex.remove(markPos);
         }
 
         ArrayList<MediaItem> result = new ArrayList<>();
@@ -141,14 +261,26 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
             if (i >= start) {
                 result.add(slot[k]);
             }
+            prev[k] = slot[k];
             slot[k] = mFetcher[k].getItem(subPos[k]);
 
             // Periodically leave a mark in the index, so we can come back later.
             if ((i + 1) % PAGE_SIZE == 0) {
-                mIndex.put(i + 1, subPos.clone());
+                Path[] last = new Path[size];
+                Path[] next = new Path[size];
+                for (int j = 0; j < size; j++) {
+                    last[j] = pathOf(prev[j]);
+                    next[j] = pathOf(slot[j]);
+                }
+                mIndex.put(i + 1, new Mark(subPos.clone(), last, next));
             }
         }
 
+        if (changed) {
+            Log.v(TAG, "getMediaItem(" + start + ", " + count + ") after change: "
+                    + (SystemClock.uptimeMillis() - startTime) + "ms, "
+                    + mIndex.size() + " marks");
+        }
         return result;
     }
 
@@ -164,13 +296,20 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
     @Override
     public long reload() {
         boolean changed = false;
-        for (MediaSet mSource : mSources) {
-            if (mSource.reload() > mDataVersion) changed = true;
+        for (int i = 0, n = mSources.length; i < n; i++) {
+            long version = mSources[i].reload();
+            if (version != mSourceVersion[i]) {
+                // Only this source's pages are out of date. The index is
+                // updated on the next getMediaItem().
+                mSourceVersion[i] = version;
+                mSourceChanged[i] = true;
+                mFetcher[i].invalidate();
+                changed = true;
+            }
         }
         if (changed) {
             mDataVersion = nextVersionNumber();
             updateData();
-            invalidateCache();
         }
         return mDataVersion;
     }
@@ -217,6 +356,14 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
             mCacheRef = null;
         }
 
+        // Loads and caches the first page.
+        public ArrayList<MediaItem> reloadHead() {
+            ArrayList<MediaItem> cache = mBaseSet.getMediaItem(0, PAGE_SIZE);
+            mCacheRef = new SoftReference<>(cache);
+            mStartPos = 0;
+            return cache;
+        }
+
         public MediaItem getItem(int index) {
             boolean needLoading = false;
             ArrayList<MediaItem> cache = null;
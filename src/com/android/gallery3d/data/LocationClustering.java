@@ -32,17 +32,12 @@ class LocationClustering extends Clustering {
     @SuppressWarnings("unused")
     private static final String TAG = "LocationClustering";
 
-    private static final int MIN_GROUPS = 1;
-    private static final int MAX_GROUPS = 20;
-    private static final int MAX_ITERATIONS = 30;
-
-    // If the total distance change is less than this ratio, stop iterating.
-    private static final float STOP_CHANGE_RATIO = 0.01f;
     private final Context mContext;
-    private ArrayList<ArrayList<SmallItem>> mClusters;
+    private ArrayList<ArrayList<Path>> mClusters;
     private ArrayList<String> mNames;
     private final String mNoLocationString;
     private final Handler mHandler;
+    private boolean mHasUnresolvedAddress;
 
     public LocationClustering(Context context) {
         mContext = context;
@@ -50,15 +45,13 @@ class LocationClustering extends Clustering {
         mHandler = new Handler(Looper.getMainLooper());
     }
 
-    private static String generateName(ArrayList<SmallItem> items,
+    private static String generateName(MediaSnapshot snapshot, int[] items,
                                        ReverseGeocoder geocoder) {
         ReverseGeocoder.SetLatLong set = new ReverseGeocoder.SetLatLong();
 
-        int n = items.size();
-        for (int i = 0; i < n; i++) {
-            SmallItem item = items.get(i);
-            double itemLatitude = item.lat;
-            double itemLongitude = item.lng;
+        for (int item : items) {
+            double itemLatitude = snapshot.lat[item];
+            double itemLongitude = snapshot.lng[item];
 
             if (set.mMinLatLatitude > itemLatitude) {
                 set.mMinLatLatitude = itemLatitude;
@@ -81,167 +74,48 @@ class LocationClustering extends Clustering {
         return geocoder.computeAddress(set);
     }
 
-    // Input: n points
-    // Output: the best k is stored in bestK[0], and the return value is the
-    // an array which specifies the group that each point belongs (0 to k - 1).
-    private static int[] kMeans(Point[] points, int[] bestK) {
-        int n = points.length;
-
-        // min and max number of groups wanted
-        int minK = Math.min(n, MIN_GROUPS);
-        int maxK = Math.min(n, MAX_GROUPS);
-
-        Point[] center = new Point[maxK];  // center of each group.
-        Point[] groupSum = new Point[maxK];  // sum of points in each group.
-        int[] groupCount = new int[maxK];  // number of points in each group.
-        int[] grouping = new int[n]; // The group assignment for each point.
-
-        for (int i = 0; i < maxK; i++) {
-            center[i] = new Point();
-            groupSum[i] = new Point();
-        }
-
-        // The score we want to minimize is:
-        //   (sum of distance from each point to its group center) * sqrt(k).
-        float bestScore = Float.MAX_VALUE;
-        // The best group assignment up to now.
-        int[] bestGrouping = new int[n];
-        // The best K up to now.
-        bestK[0] = 1;
-
-        float lastDistance = 0;
-        float totalDistance = 0;
-
-        for (int k = minK; k <= maxK; k++) {
-            // step 1: (arbitrarily) pick k points as the initial centers.
-            int delta = n / k;
-            for (int i = 0; i < k; i++) {
-                Point p = points[i * delta];
-                center[i].latRad = p.latRad;
-                center[i].lngRad = p.lngRad;
-            }
-
-            for (int iter = 0; iter < MAX_ITERATIONS; iter++) {
-                // step 2: assign each point to the nearest center.
-                for (int i = 0; i < k; i++) {
-                    groupSum[i].latRad = 0;
-                    groupSum[i].lngRad = 0;
-                    groupCount[i] = 0;
-                }
-                totalDistance = 0;
-
-                for (int i = 0; i < n; i++) {
-                    Point p = points[i];
-                    float bestDistance = Float.MAX_VALUE;
-                    int bestIndex = 0;
-                    for (int j = 0; j < k; j++) {
-                        float distance = (float) GalleryUtils.fastDistanceMeters(
-                                p.latRad, p.lngRad, center[j].latRad, center[j].lngRad);
-                        // We may have small non-zero distance introduced by
-                        // floating point calculation, so zero out small
-                        // distances less than 1 meter.
-                        if (distance < 1) {
-                            distance = 0;
-                        }
-                        if (distance < bestDistance) {
-                            bestDistance = distance;
-                            bestIndex = j;
-                        }
-                    }
-                    grouping[i] = bestIndex;
-                    groupCount[bestIndex]++;
-                    groupSum[bestIndex].latRad += p.latRad;
-                    groupSum[bestIndex].lngRad += p.lngRad;
-                    totalDistance += bestDistance;
-                }
-
-                // step 3: calculate new centers
-                for (int i = 0; i < k; i++) {
-                    if (groupCount[i] > 0) {
-                        center[i].latRad = groupSum[i].latRad / groupCount[i];
-                        center[i].lngRad = groupSum[i].lngRad / groupCount[i];
-                    }
-                }
-
-                if (totalDistance == 0 || (Math.abs(lastDistance - totalDistance)
-                        / totalDistance) < STOP_CHANGE_RATIO) {
-                    break;
-                }
-                lastDistance = totalDistance;
-            }
-
-            // step 4: remove empty groups and reassign group number
-            int[] reassign = new int[k];
-            int realK = 0;
-            for (int i = 0; i < k; i++) {
-                if (groupCount[i] > 0) {
-                    reassign[i] = realK++;
-                }
-            }
-
-            // step 5: calculate the final score
-            float score = totalDistance * (float) Math.sqrt(realK);
-
-            if (score < bestScore) {
-                bestScore = score;
-                bestK[0] = realK;
-                for (int i = 0; i < n; i++) {
-                    bestGrouping[i] = reassign[grouping[i]];
-                }
-                if (score == 0) {
-                    break;
-                }
-            }
-        }
-        return bestGrouping;
-    }
-
     @Override
     public void run(MediaSet baseSet) {
-        final int total = baseSet.getTotalMediaItemCount();
-        final SmallItem[] buf = new SmallItem[total];
-        // Separate items to two sets: with or without lat-long.
-        final double[] latLong = new double[2];
-        baseSet.enumerateTotalMediaItems((index, item) -> {
-            if (index < 0 || index >= total) return;
-            SmallItem s = new SmallItem();
-            s.path = item.getPath();
-            item.getLatLong(latLong);
-            s.lat = latLong[0];
-            s.lng = latLong[1];
-            buf[index] = s;
-        });
+        MediaSnapshot snapshot = MediaSnapshot.of(baseSet);
+        int total = snapshot.count;
 
-        final ArrayList<SmallItem> withLatLong = new ArrayList<>();
-        final ArrayList<SmallItem> withoutLatLong = new ArrayList<>();
-        final ArrayList<Point> points = new ArrayList<>();
+        // Separate items to two sets: with or without lat-long.
+        int[] withLatLong = new int[total];
+        int[] withoutLatLong = new int[total];
+        int m = 0;
+        int withoutCount = 0;
         for (int i = 0; i < total; i++) {
-            SmallItem s = buf[i];
-            if (s == null) continue;
-            if (GalleryUtils.isValidLocation(s.lat, s.lng)) {
-                withLatLong.add(s);
-                points.add(new Point(s.lat, s.lng));
+            if (GalleryUtils.isValidLocation(snapshot.lat[i], snapshot.lng[i])) {
+                withLatLong[m++] = i;
             } else {
-                withoutLatLong.add(s);
+                withoutLatLong[withoutCount++] = i;
             }
         }
 
-        ArrayList<ArrayList<SmallItem>> clusters = new ArrayList<>();
-
-        int m = withLatLong.size();
+        int[][] clusters = new int[0][];
         if (m > 0) {
             // cluster the items with lat-long
-            Point[] pointsArray = new Point[m];
-            pointsArray = points.toArray(pointsArray);
+            double[] lat = new double[m];
+            double[] lng = new double[m];
+            for (int i = 0; i < m; i++) {
+                lat[i] = snapshot.lat[withLatLong[i]];
+                lng[i] = snapshot.lng[withLatLong[i]];
+            }
             int[] bestK = new int[1];
-            int[] index = kMeans(pointsArray, bestK);
+            int[] index = LocationKMeans.cluster(lat, lng, m, bestK);
 
+            int[] clusterSize = new int[bestK[0]];
+            for (int i = 0; i < m; i++) {
+                clusterSize[index[i]]++;
+            }
+            clusters = new int[bestK[0]][];
             for (int i = 0; i < bestK[0]; i++) {
-                clusters.add(new ArrayList<>());
+                clusters[i] = new int[clusterSize[i]];
+                clusterSize[i] = 0;
             }
-
             for (int i = 0; i < m; i++) {
-                clusters.get(index[i]).add(withLatLong.get(i));
+                int k = index[i];
+                clusters[k][clusterSize[k]++] = withLatLong[i];
             }
         }
 
@@ -249,23 +123,32 @@ class LocationClustering extends Clustering {
         mNames = new ArrayList<>();
         boolean hasUnresolvedAddress = false;
         mClusters = new ArrayList<>();
-        for (ArrayList<SmallItem> cluster : clusters) {
-            String name = generateName(cluster, geocoder);
+        ArrayList<Path> noLocation = new ArrayList<>(withoutCount);
+        for (int i = 0; i < withoutCount; i++) {
+            noLocation.add(snapshot.paths[withoutLatLong[i]]);
+        }
+        for (int[] cluster : clusters) {
+            String name = generateName(snapshot, cluster, geocoder);
+            ArrayList<Path> paths = name != null
+                    ? new ArrayList<>(cluster.length) : noLocation;
+            for (int item : cluster) {
+                paths.add(snapshot.paths[item]);
+            }
             if (name != null) {
                 mNames.add(name);
-                mClusters.add(cluster);
+                mClusters.add(paths);
             } else {
-                // move cluster-i to no location cluster
-                withoutLatLong.addAll(cluster);
+                // cluster-i was moved to the no location cluster
                 hasUnresolvedAddress = true;
             }
         }
 
-        if (withoutLatLong.size() > 0) {
+        if (noLocation.size() > 0) {
             mNames.add(mNoLocationString);
-            mClusters.add(withoutLatLong);
+            mClusters.add(noLocation);
         }
 
+        mHasUnresolvedAddress = hasUnresolvedAddress;
         if (hasUnresolvedAddress) {
             mHandler.post(() -> Toast.makeText(mContext, R.string.no_connectivity,
                     Toast.LENGTH_LONG).show());
@@ -279,12 +162,7 @@ class LocationClustering extends Clustering {
 
     @Override
     public ArrayList<Path> getCluster(int index) {
-        ArrayList<SmallItem> items = mClusters.get(index);
-        ArrayList<Path> result = new ArrayList<>(items.size());
-        for (int i = 0, n = items.size(); i < n; i++) {
-            result.add(items.get(i).path);
-        }
-        return result;
+        return mClusters.get(index);
     }
 
     @Override
@@ -292,20 +170,10 @@ class LocationClustering extends Clustering {
         return mNames.get(index);
     }
 
-    private static class Point {
-        public double latRad, lngRad;
-
-        public Point(double lat, double lng) {
-            latRad = Math.toRadians(lat);
-            lngRad = Math.toRadians(lng);
-        }
-
-        public Point() {
-        }
-    }
-
-    private static class SmallItem {
-        Path path;
-        double lat, lng;
+    // The items whose address couldn't be found are in the no location
+    // cluster, they may be found next time.
+    @Override
+    public boolean isResultComplete() {
+        return !mHasUnresolvedAddress;
     }
 }
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2026, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.gallery3d.data;
+
+import com.android.gallery3d.util.GalleryUtils;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// The k-means behind LocationClustering. It only works on coordinates, so it
+// can be benchmarked without the rest of the app.
+final class LocationKMeans {
+    private static final int MIN_GROUPS = 1;
+    private static final int MAX_GROUPS = 20;
+    private static final int MAX_ITERATIONS = 30;
+
+    // If the total distance change is less than this ratio, stop iterating.
+    private static final float STOP_CHANGE_RATIO = 0.01f;
+
+    // Items less than about 60 meters apart are clustered as one location.
+    private static final double GRID_CELL_RAD = 1e-5;
+    // More than the number of cells around the equator.
+    private static final long GRID_ROW_SIZE = 1L << 20;
+    private static final long EMPTY_CELL_KEY = Long.MIN_VALUE;
+
+    // Assign in parallel only when there are enough locations to be worth it.
+    private static final int PARALLEL_MIN_LOCATIONS = 4096;
+    private static final long SEEDING_RANDOM_SEED = 0x5eed;
+    private static final double EARTH_RADIUS_METERS = 6367000.0;
+
+    private static ForkJoinPool sPool;
+
+    private LocationKMeans() {
+    }
+
+    // Input: n valid locations in degrees.
+    // Output: the number of groups is stored in bestK[0], and the return value
+    // is an array which specifies the group that each location belongs (0 to
+    // bestK[0] - 1).
+    static int[] cluster(double[] lat, double[] lng, int n, int[] bestK) {
+        int[] cellOf = new int[n];
+        double[] cellLat = new double[n];
+        double[] cellLng = new double[n];
+        int[] cellWeight = new int[n];
+        int cellCount = mergeIntoCells(lat, lng, n, cellOf, cellLat, cellLng,
+                cellWeight);
+        int[] index = kMeans(cellLat, cellLng, cellWeight, cellCount, bestK);
+        int[] grouping = new int[n];
+        for (int i = 0; i < n; i++) {
+            grouping[i] = index[cellOf[i]];
+        }
+        return grouping;
+    }
+
+    // Input: m distinct locations in radians, and the number of items at each.
+    // Output: the best k is stored in bestK[0], and the return value is the
+    // an array which specifies the group that each location belongs (0 to
+    // k - 1).
+    private static int[] kMeans(double[] latRad, double[] lngRad, int[] weight,
+                                int m, int[] bestK) {
+        // min and max number of groups wanted
+        int minK = Math.min(m, MIN_GROUPS);
+        double[] seedLat = new double[Math.min(m, MAX_GROUPS)];
+        double[] seedLng = new double[seedLat.length];
+        int maxK = chooseSeeds(latRad, lngRad, weight, m, seedLat, seedLng);
+
+        Assignment a = new Assignment(latRad, lngRad, weight, m, maxK);
+
+        // The score we want to minimize is:
+        //   (sum of distance from each item to its group center) * sqrt(k).
+        double bestScore = Double.MAX_VALUE;
+        // The best group assignment up to now.
+        int[] bestGrouping = new int[m];
+        // The best K up to now.
+        bestK[0] = 1;
+
+        for (int k = minK; k <= maxK; k++) {
+            // step 1: start from the first k seeds.
+            System.arraycopy(seedLat, 0, a.centerLat, 0, k);
+            System.arraycopy(seedLng, 0, a.centerLng, 0, k);
+            a.k = k;
+
+            double lastDistance = 0;
+            Partial result = null;
+            for (int iter = 0; iter < MAX_ITERATIONS; iter++) {
+                // step 2: assign each location to the nearest center.
+                result = a.assignAll();
+
+                // step 3: calculate new centers
+                for (int i = 0; i < k; i++) {
+                    if (result.groupCount[i] > 0) {
+                        a.centerLat[i] = result.latSum[i] / result.groupCount[i];
+                        a.centerLng[i] = result.lngSum[i] / result.groupCount[i];
+                    }
+                }
+
+                double totalDistance = result.distance;
+                if (totalDistance == 0 || (Math.abs(lastDistance - totalDistance)
+                        / totalDistance) < STOP_CHANGE_RATIO) {
+                    break;
+                }
+                lastDistance = totalDistance;
+            }
+
+            // step 4: remove empty groups and reassign group number
+            int[] reassign = new int[k];
+            int realK = 0;
+            for (int i = 0; i < k; i++) {
+                if (result.groupCount[i] > 0) {
+                    reassign[i] = realK++;
+                }
+            }
+
+            // step 5: calculate the final score
+            double score = result.distance * Math.sqrt(realK);
+
+            if (score < bestScore) {
+                bestScore = score;
+                bestK[0] = realK;
+                for (int i = 0; i < m; i++) {
+                    bestGrouping[i] = reassign[a.grouping[i]];
+                }
+                if (score == 0) {
+                    break;
+                }
+            }
+        }
+        return bestGrouping;
+    }
+
+    // Picks up to seedLat.length initial centers with k-means++: the first
+    // is the location with the most items, and each next one is a location
+    // picked with probability proportional to its items times its squared
+    // distance to the nearest center so far. The seeds for k groups are the
+    // first k, so they are only picked once for all k. A fixed random seed
+    // keeps the clusters the same between runs on the same items.
+    //
+    // Returns the number of seeds, which is less than asked for if there are
+    // fewer distinct locations.
+    private static int chooseSeeds(double[] latRad, double[] lngRad, int[] weight,
+                                   int m, double[] seedLat, double[] seedLng) {
+        if (seedLat.length == 0) return 0;
+        int first = 0;
+        for (int i = 1; i < m; i++) {
+            if (weight[i] > weight[first]) first = i;
+        }
+        seedLat[0] = latRad[first];
+        seedLng[0] = lngRad[first];
+
+        double[] nearest = new double[m];
+        for (int i = 0; i < m; i++) nearest[i] = Double.MAX_VALUE;
+        Random random = new Random(SEEDING_RANDOM_SEED);
+        int count = 1;
+        while (count < seedLat.length) {
+            double total = 0;
+            for (int i = 0; i < m; i++) {
+                double d = GalleryUtils.fastDistanceMeters(latRad[i], lngRad[i],
+                        seedLat[count - 1], seedLng[count - 1]);
+                if (d < 1) d = 0;
+                nearest[i] = Math.min(nearest[i], d * d);
+                total += nearest[i] * weight[i];
+            }
+            if (total == 0) break;
+
+            double target = random.nextDouble() * total;
+            int pick = -1;
+            for (int i = 0; i < m; i++) {
+                if (nearest[i] == 0) continue;
+                pick = i;
+                target -= nearest[i] * weight[i];
+                if (target < 0) break;
+            }
+            seedLat[count] = latRad[pick];
+            seedLng[count] = lngRad[pick];
+            count++;
+        }
+        return count;
+    }
+
+    // The sums of one assignment pass over a range of locations.
+    private static class Partial {
+        final double[] latSum;  // sum of locations in each group.
+        final double[] lngSum;
+        final int[] groupCount;  // number of items in each group.
+        double distance;  // sum of distances from items to their center.
+
+        Partial(int k) {
+            latSum = new double[k];
+            lngSum = new double[k];
+            groupCount = new int[k];
+        }
+
+        void add(Partial other) {
+            for (int i = 0; i < latSum.length; i++) {
+                latSum[i] += other.latSum[i];
+                lngSum[i] += other.lngSum[i];
+                groupCount[i] += other.groupCount[i];
+            }
+            distance += other.distance;
+        }
+    }
+
+    // Assigns locations to their nearest center. Large inputs are split into
+    // ranges assigned in parallel on sPool; the partial sums are combined in
+    // a fixed order, so the result doesn't depend on the scheduling.
+    private static class Assignment {
+        final double[] latRad;
+        final double[] lngRad;
+        final int[] weight;
+        final int n;
+        final double[] centerLat;
+        final double[] centerLng;
+        final int[] grouping;  // The group assignment for each location.
+        int k;
+
+        Assignment(double[] latRad, double[] lngRad, int[] weight, int n, int maxK) {
+            this.latRad = latRad;
+            this.lngRad = lngRad;
+            this.weight = weight;
+            this.n = n;
+            centerLat = new double[maxK];
+            centerLng = new double[maxK];
+            grouping = new int[n];
+        }
+
+        Partial assignAll() {
+            if (n < PARALLEL_MIN_LOCATIONS) return assign(0, n);
+            return getPool().invoke(new AssignTask(this, 0, n));
+        }
+
+        Partial assign(int from, int to) {
+            Partial p = new Partial(k);
+            for (int i = from; i < to; i++) {
+                double lat = latRad[i];
+                double lng = lngRad[i];
+                // Start from the previous group, it's usually still the
+                // nearest and gives a tight bound for the others.
+                int bestIndex = grouping[i] < k ? grouping[i] : 0;
+                double bestDistance = distance(lat, lng, bestIndex);
+                for (int j = 0; j < k; j++) {
+                    if (j == bestIndex) continue;
+                    // The distance is at least the north-south distance, so
+                    // skip the centers which are too far north or south.
+                    if (Math.abs(lat - centerLat[j]) * EARTH_RADIUS_METERS
+                            >= bestDistance) {
+                        continue;
+                    }
+                    double distance = distance(lat, lng, j);
+                    if (distance < bestDistance
+                            || (distance == bestDistance && j < bestIndex)) {
+                        bestDistance = distance;
+                        bestIndex = j;
+                    }
+                }
+                int w = weight[i];
+                grouping[i] = bestIndex;
+                p.groupCount[bestIndex] += w;
+                p.latSum[bestIndex] += lat * w;
+                p.lngSum[bestIndex] += lng * w;
+                p.distance += bestDistance * w;
+            }
+            return p;
+        }
+
+        private double distance(double lat, double lng, int center) {
+            double distance = GalleryUtils.fastDistanceMeters(
+                    lat, lng, centerLat[center], centerLng[center]);
+            // We may have small non-zero distance introduced by floating
+            // point calculation, so zero out small distances less than 1
+            // meter.
+            return distance < 1 ? 0 : distance;
+        }
+    }
+
+    private static class AssignTask extends RecursiveTask<Partial> {
+        private final Assignment mAssignment;
+        private final int mFrom;
+        private final int mTo;
+
+        AssignTask(Assignment assignment, int from, int to) {
+            mAssignment = assignment;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (mTo - mFrom <= PARALLEL_MIN_LOCATIONS / 2) {
+                return mAssignment.assign(mFrom, mTo);
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            AssignTask right = new AssignTask(mAssignment, mid, mTo);
+            right.fork();
+            Partial result = new AssignTask(mAssignment, mFrom, mid).compute();
+            result.add(right.join());
+            return result;
+        }
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sPool;
+    }
+
+    // Merges the items into grid cells of about GRID_CELL_RAD, which are
+    // clustered instead of the items. Photos tend to be taken at a few places
+    // over and over, so there are usually far fewer cells than items. Each
+    // cell is at the mean location of its items.
+    //
+    // Returns the number of cells. cellOf[i] is set to the cell of items[i].
+    private static int mergeIntoCells(double[] lat, double[] lng, int n,
+                                      int[] cellOf, double[] cellLat,
+                                      double[] cellLng, int[] cellWeight) {
+        int capacity = Integer.highestOneBit(Math.max(2, n) * 2 - 1) * 2;
+        long[] keys = new long[capacity];
+        int[] cells = new int[capacity];
+        Arrays.fill(keys, EMPTY_CELL_KEY);
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            double latRad = Math.toRadians(lat[i]);
+            double lngRad = Math.toRadians(lng[i]);
+            long key = (long) Math.floor(latRad / GRID_CELL_RAD) * GRID_ROW_SIZE
+                    + (long) Math.floor(lngRad / GRID_CELL_RAD);
+            int slot = (int) (key ^ (key >>> 32)) * 0x9E3779B9 & (capacity - 1);
+            while (keys[slot] != EMPTY_CELL_KEY && keys[slot] != key) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            if (keys[slot] == EMPTY_CELL_KEY) {
+                keys[slot] = key;
+                cells[slot] = count++;
+            }
+            int cell = cells[slot];
+            cellOf[i] = cell;
+            cellLat[cell] += latRad;
+            cellLng[cell] += lngRad;
+            cellWeight[cell]++;
+        }
+        for (int i = 0; i < count; i++) {
+            cellLat[i] /= cellWeight[i];
+            cellLng[i] /= cellWeight[i];
+        }
+        return count;
+    }
+}
@@ -0,0 +1,537 @@
+/*
+ * Copyright (c) 2026, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.gallery3d.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Files;
+import android.provider.MediaStore.Files.FileColumns;
+import android.provider.MediaStore.Images;
+import android.provider.MediaStore.Images.ImageColumns;
+import android.provider.MediaStore.Video;
+import android.util.Log;
+
+import com.android.gallery3d.app.GalleryApp;
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.BucketHelper.BucketEntry;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// MediaIndex is a persistent summary of the local albums: for each bucket and
+// media type, the number of items, the cover item (the latest one) and its
+// date taken. It's saved in the cache directory, so the album set can be
+// shown on a cold start before MediaStore is scanned again.
+//
+// reconcile() brings the index up to date. It first reads a summary of each
+// bucket from MediaStore with a grouped query: the count, the largest _id,
+// the latest date_modified and the latest date taken of its media. If every
+// bucket matches the index there is nothing more to do. Otherwise the rows
+// added or modified since are read, and if the buckets still don't match the
+// summary (items were deleted, or moved to another bucket), the index is
+// rebuilt from all rows.
+public class MediaIndex {
+    private static final String TAG = "MediaIndex";
+    private static final String FILE_NAME = "media_index";
+    private static final int MAGIC = 0x4d494458; // "MIDX"
+    private static final int VERSION = 2;
+
+    private static final Uri FILES_URI = Files.getContentUri("external");
+    private static final String MEDIA_SELECTION = FileColumns.MEDIA_TYPE
+            + " IN (" + FileColumns.MEDIA_TYPE_IMAGE + ","
+            + FileColumns.MEDIA_TYPE_VIDEO + ")";
+    private static final String DELTA_SELECTION = MEDIA_SELECTION
+            + " AND (" + FileColumns._ID + " > ? OR "
+            + FileColumns.DATE_MODIFIED + " > ?)";
+
+    // One row per bucket and media type. Before R, MediaProvider only takes
+    // a GROUP BY through the selection.
+    private static final String[] PROJECTION_SUMMARY = {
+            ImageColumns.BUCKET_ID,
+            FileColumns.MEDIA_TYPE,
+            "COUNT(" + FileColumns._ID + ")",
+            "MAX(" + FileColumns._ID + ")",
+            "MAX(" + FileColumns.DATE_MODIFIED + ")",
+            "MAX(" + ImageColumns.DATE_TAKEN + ")"};
+    private static final String SUMMARY_GROUP_BY =
+            ImageColumns.BUCKET_ID + ", " + FileColumns.MEDIA_TYPE;
+    private static final String SUMMARY_SELECTION_GROUP_BY = MEDIA_SELECTION
+            + ") GROUP BY (" + SUMMARY_GROUP_BY;
+    private static final int INDEX_SUMMARY_BUCKET_ID = 0;
+    private static final int INDEX_SUMMARY_MEDIA_TYPE = 1;
+    private static final int INDEX_COUNT = 2;
+    private static final int INDEX_MAX_ID = 3;
+    private static final int INDEX_MAX_DATE_MODIFIED = 4;
+    private static final int INDEX_MAX_DATE_TAKEN = 5;
+
+    private static final String[] PROJECTION_ROW = {
+            FileColumns._ID,
+            FileColumns.MEDIA_TYPE,
+            ImageColumns.BUCKET_ID,
+            ImageColumns.BUCKET_DISPLAY_NAME,
+            ImageColumns.DATE_TAKEN,
+            FileColumns.DATE_MODIFIED};
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_MEDIA_TYPE = 1;
+    private static final int INDEX_BUCKET_ID = 2;
+    private static final int INDEX_BUCKET_NAME = 3;
+    private static final int INDEX_DATE_TAKEN = 4;
+    private static final int INDEX_DATE_MODIFIED = 5;
+
+    private static MediaIndex sInstance;
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final File mFile;
+    private final Object mReconcileLock = new Object();
+
+    // Set when MediaStore reports a change after the last reconcile(), and
+    // until the first reconcile() of this process: the saved index misses
+    // the changes made while the app was not running. The counts may be out
+    // of date then.
+    private volatile boolean mStale = true;
+    private volatile State mState;
+
+    // Keeps the notifier registered; DataManager only holds it weakly.
+    @SuppressWarnings("unused")
+    private final ChangeNotifier mNotifier;
+
+    private static class Bucket {
+        final int bucketId;
+        final int mediaType;  // MEDIA_TYPE_IMAGE or MEDIA_TYPE_VIDEO
+        final String name;
+        int count;
+        int coverId;
+        long coverDateTaken;
+        // Only used to compare with the MediaStore summary.
+        long maxId;
+        long maxDateModified;
+
+        Bucket(int bucketId, int mediaType, String name) {
+            this.bucketId = bucketId;
+            this.mediaType = mediaType;
+            this.name = Utils.ensureNotNull(name);
+        }
+
+        Bucket(Bucket other) {
+            this(other.bucketId, other.mediaType, other.name);
+            count = other.count;
+            coverId = other.coverId;
+            coverDateTaken = other.coverDateTaken;
+            maxId = other.maxId;
+            maxDateModified = other.maxDateModified;
+        }
+
+        // The cover is the first item of the album, which is sorted by
+        // date taken and then id, both descending.
+        void add(int id, long dateTaken, long dateModified) {
+            if (count++ == 0 || dateTaken > coverDateTaken
+                    || (dateTaken == coverDateTaken && id > coverId)) {
+                coverId = id;
+                coverDateTaken = dateTaken;
+            }
+            maxId = Math.max(maxId, id);
+            maxDateModified = Math.max(maxDateModified, dateModified);
+        }
+
+        // Returns true if the bucket agrees with its row of the MediaStore
+        // summary.
+        boolean matches(long[] summary) {
+            return count == summary[INDEX_COUNT]
+                    && maxId == summary[INDEX_MAX_ID]
+                    && maxDateModified == summary[INDEX_MAX_DATE_MODIFIED]
+                    && coverDateTaken == summary[INDEX_MAX_DATE_TAKEN];
+        }
+    }
+
+    // An immutable version of the index. reconcile() builds a new one.
+    private static class State {
+        final HashMap<Long, Bucket> buckets;
+        // Whether the buckets were read from MediaStore, as opposed to an
+        // empty index with no saved file.
+        final boolean valid;
+        final long maxId;
+        final long maxDateModified;
+        // A hash of the bucket summaries, which changes with any of them.
+        final long fingerprint;
+        final String mediaStoreVersion;
+        final int generation;
+
+        State(HashMap<Long, Bucket> buckets, boolean valid,
+                String mediaStoreVersion, int generation) {
+            this.buckets = buckets;
+            this.valid = valid;
+            this.mediaStoreVersion = mediaStoreVersion;
+            this.generation = generation;
+
+            Long[] keys = buckets.keySet().toArray(new Long[0]);
+            Arrays.sort(keys);
+            long id = 0;
+            long dateModified = 0;
+            StringBuilder summary = new StringBuilder();
+            for (Long key : keys) {
+                Bucket bucket = buckets.get(key);
+                id = Math.max(id, bucket.maxId);
+                dateModified = Math.max(dateModified, bucket.maxDateModified);
+                summary.append(key).append(':').append(bucket.count)
+                        .append(':').append(bucket.maxId)
+                        .append(':').append(bucket.maxDateModified)
+                        .append(':').append(bucket.coverDateTaken).append(',');
+            }
+            maxId = id;
+            maxDateModified = dateModified;
+            fingerprint = Utils.crc64Long(summary.toString());
+        }
+
+        // Returns true if the buckets agree with the MediaStore summary.
+        boolean matches(HashMap<Long, long[]> summary) {
+            if (summary.size() != buckets.size()) return false;
+            for (Bucket bucket : buckets.values()) {
+                long[] row = summary.get(makeKey(bucket.bucketId,
+                        bucket.mediaType));
+                if (row == null || !bucket.matches(row)) return false;
+            }
+            return true;
+        }
+    }
+
+    public static synchronized MediaIndex getInstance(GalleryApp application) {
+        if (sInstance == null) {
+            sInstance = new MediaIndex(application);
+        }
+        return sInstance;
+    }
+
+    private MediaIndex(GalleryApp application) {
+        mContext = application.getAndroidContext();
+        mResolver = application.getContentResolver();
+        mFile = new File(mContext.getCacheDir(), FILE_NAME);
+        mNotifier = new ChangeNotifier(null, new Uri[] {
+                Images.Media.EXTERNAL_CONTENT_URI,
+                Video.Media.EXTERNAL_CONTENT_URI}, application) {
+            @Override
+            protected void onChange() {
+                mStale = true;
+            }
+        };
+        mState = load();
+    }
+
+    private static long makeKey(int bucketId, int mediaType) {
+        return ((long) bucketId << 32) | (mediaType & 0xffffffffL);
+    }
+
+    // Returns the generation of the index. It changes whenever reconcile()
+    // finds a difference.
+    public int getGeneration() {
+        return mState.generation;
+    }
+
+    // Returns a string that changes whenever reconcile() finds a difference,
+    // also across sessions, or null if the index may be out of date.
+    public String getContentKey() {
+        State state = mState;
+        if (mStale || !state.valid) return null;
+        return state.mediaStoreVersion + "/"
+                + Long.toHexString(state.fingerprint);
+    }
+
+    // Returns the number of items of the given bucket, or -1 if it's unknown
+    // or may be out of date.
+    public int getCount(int bucketId, int mediaType) {
+        if (mStale) return -1;
+        Bucket bucket = mState.buckets.get(makeKey(bucketId, mediaType));
+        return bucket == null ? -1 : bucket.count;
+    }
+
+    // Returns the _id of the cover item of the given bucket, or -1.
+    public int getCoverId(int bucketId, int mediaType) {
+        if (mStale) return -1;
+        Bucket bucket = mState.buckets.get(makeKey(bucketId, mediaType));
+        return bucket == null ? -1 : bucket.coverId;
+    }
+
+    // Returns the buckets holding media of the given type (MEDIA_TYPE_IMAGE,
+    // MEDIA_TYPE_VIDEO or MEDIA_TYPE_ALL), latest first.
+    public BucketEntry[] getBucketEntries(int type) {
+        HashMap<Integer, Bucket> merged = new HashMap<>();
+        for (Bucket bucket : mState.buckets.values()) {
+            if ((bucket.mediaType & type) == 0) continue;
+            Bucket entry = merged.get(bucket.bucketId);
+            if (entry == null || bucket.coverDateTaken > entry.coverDateTaken) {
+                merged.put(bucket.bucketId, bucket);
+            }
+        }
+        Bucket[] buckets = merged.values().toArray(new Bucket[0]);
+        Arrays.sort(buckets, (b1, b2) -> Long.compare(
+                b2.coverDateTaken, b1.coverDateTaken));
+        BucketEntry[] entries = new BucketEntry[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            entries[i] = new BucketEntry(buckets[i].bucketId, buckets[i].name);
+        }
+        return entries;
+    }
+
+    // Brings the index up to date with MediaStore. Returns false if the job
+    // is cancelled first.
+    public boolean reconcile(JobContext jc) {
+        synchronized (mReconcileLock) {
+            // Changes reported from now on are not covered by this pass.
+            mStale = false;
+            if (!reconcileLocked(jc)) {
+                mStale = true;
+            }
+            return !jc.isCancelled();
+        }
+    }
+
+    // Returns false if the index could not be brought up to date.
+    private boolean reconcileLocked(JobContext jc) {
+        State old = mState;
+        String version = Utils.ensureNotNull(MediaStore.getVersion(mContext));
+        HashMap<Long, long[]> summary = querySummary();
+        if (summary == null) return false;
+        boolean sameVersion = version.equals(old.mediaStoreVersion);
+        if (old.valid && sameVersion && old.matches(summary)) return true;
+
+        State state = null;
+        if (old.valid && sameVersion) {
+            HashMap<Long, Bucket> buckets = applyAddedRows(jc, old);
+            if (buckets != null) {
+                state = new State(buckets, true, version, old.generation + 1);
+                if (!state.matches(summary)) state = null;
+            }
+        }
+        if (state == null) {
+            if (jc.isCancelled()) return false;
+            HashMap<Long, Bucket> buckets = new HashMap<>();
+            if (!addRows(jc, buckets, null, null)) return false;
+            state = new State(buckets, true, version, old.generation + 1);
+        }
+
+        mState = state;
+        save(state);
+        return true;
+    }
+
+    // Returns the buckets with the items added since the old state, or null
+    // if an old item was modified and the index has to be rebuilt. The
+    // caller checks the result against the summary, which catches deleted
+    // and moved items.
+    private HashMap<Long, Bucket> applyAddedRows(JobContext jc, State old) {
+        HashMap<Long, Bucket> buckets = new HashMap<>(old.buckets.size() * 2);
+        for (Bucket bucket : old.buckets.values()) {
+            buckets.put(makeKey(bucket.bucketId, bucket.mediaType),
+                    new Bucket(bucket));
+        }
+        int[] added = new int[1];
+        String[] args = {String.valueOf(old.maxId),
+                String.valueOf(old.maxDateModified)};
+        if (!addRows(jc, buckets, args, added)) return null;
+        if (added[0] < 0) return null;
+        return buckets;
+    }
+
+    // Adds the media rows to the buckets: all of them, or with deltaArgs
+    // only the ones added or modified since the old state. Counts the added
+    // rows in added[0], or sets it to -1 if an old row was modified.
+    // Returns false if cancelled or the query fails.
+    private boolean addRows(JobContext jc, HashMap<Long, Bucket> buckets,
+            String[] deltaArgs, int[] added) {
+        Cursor cursor = mResolver.query(FILES_URI, PROJECTION_ROW,
+                deltaArgs == null ? MEDIA_SELECTION : DELTA_SELECTION,
+                deltaArgs, null);
+        if (cursor == null) {
+            Log.w(TAG, "cannot open media database: " + FILES_URI);
+            return false;
+        }
+        long maxOldId = deltaArgs == null ? 0 : Long.parseLong(deltaArgs[0]);
+        try {
+            while (cursor.moveToNext()) {
+                if (jc.isCancelled()) return false;
+                int id = cursor.getInt(INDEX_ID);
+                if (deltaArgs != null && id <= maxOldId) {
+                    added[0] = -1;
+                    return true;
+                }
+                int mediaType = cursor.getInt(INDEX_MEDIA_TYPE)
+                        == FileColumns.MEDIA_TYPE_IMAGE
+                        ? MediaObject.MEDIA_TYPE_IMAGE
+                        : MediaObject.MEDIA_TYPE_VIDEO;
+                int bucketId = cursor.getInt(INDEX_BUCKET_ID);
+                long key = makeKey(bucketId, mediaType);
+                Bucket bucket = buckets.get(key);
+                if (bucket == null) {
+                    bucket = new Bucket(bucketId, mediaType,
+                            cursor.getString(INDEX_BUCKET_NAME));
+                    buckets.put(key, bucket);
+                }
+                bucket.add(id, cursor.getLong(INDEX_DATE_TAKEN),
+                        cursor.getLong(INDEX_DATE_MODIFIED));
+                if (added != null) added[0]++;
+            }
+        } finally {
+            Utils.closeSilently(cursor);
+        }
+        return true;
+    }
+
+    // Returns the summary rows of the buckets by key, or null if the query
+    // fails.
+    private HashMap<Long, long[]> querySummary() {
+        Cursor cursor;
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                Bundle args = new Bundle();
+                args.putString(ContentResolver.QUERY_ARG_SQL_SELECTION,
+                        MEDIA_SELECTION);
+                args.putString(ContentResolver.QUERY_ARG_SQL_GROUP_BY,
+                        SUMMARY_GROUP_BY);
+                cursor = mResolver.query(FILES_URI, PROJECTION_SUMMARY, args,
+                        null);
+            } else {
+                cursor = mResolver.query(FILES_URI, PROJECTION_SUMMARY,
+                        SUMMARY_SELECTION_GROUP_BY, null, null);
+            }
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "cannot query media summary", e);
+            return null;
+        }
+        if (cursor == null) {
+            Log.w(TAG, "cannot open media database: " + FILES_URI);
+            return null;
+        }
+        HashMap<Long, long[]> summary = new HashMap<>();
+        try {
+            while (cursor.moveToNext()) {
+                int mediaType = cursor.getInt(INDEX_SUMMARY_MEDIA_TYPE)
+                        == FileColumns.MEDIA_TYPE_IMAGE
+                        ? MediaObject.MEDIA_TYPE_IMAGE
+                        : MediaObject.MEDIA_TYPE_VIDEO;
+                long[] row = new long[PROJECTION_SUMMARY.length];
+                for (int i = INDEX_COUNT; i < row.length; i++) {
+                    row[i] = cursor.getLong(i);
+                }
+                summary.put(makeKey(cursor.getInt(INDEX_SUMMARY_BUCKET_ID),
+                        mediaType), row);
+            }
+        } finally {
+            Utils.closeSilently(cursor);
+        }
+        return summary;
+    }
+
+    private State load() {
+        HashMap<Long, Bucket> buckets = new HashMap<>();
+        if (mFile.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mFile)));
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("unknown format");
+                }
+                String version = in.readUTF();
+                int generation = in.readInt();
+                for (int i = in.readInt(); i > 0; i--) {
+                    Bucket bucket = new Bucket(
+                            in.readInt(), in.readInt(), in.readUTF());
+                    bucket.count = in.readInt();
+                    bucket.coverId = in.readInt();
+                    bucket.coverDateTaken = in.readLong();
+                    bucket.maxId = in.readLong();
+                    bucket.maxDateModified = in.readLong();
+                    buckets.put(makeKey(bucket.bucketId, bucket.mediaType),
+                            bucket);
+                }
+                return new State(buckets, true, version, generation);
+            } catch (IOException e) {
+                Log.w(TAG, "cannot read media index", e);
+                buckets.clear();
+            } finally {
+                Utils.closeSilently(in);
+            }
+        }
+        return new State(buckets, false, "", 0);
+    }
+
+    // Writes to a temporary file first, so a crash never leaves a partial
+    // index behind.
+    private void save(State state) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(state.mediaStoreVersion);
+            out.writeInt(state.generation);
+            ArrayList<Bucket> buckets = new ArrayList<>(state.buckets.values());
+            out.writeInt(buckets.size());
+            for (Bucket bucket : buckets) {
+                out.writeInt(bucket.bucketId);
+                out.writeInt(bucket.mediaType);
+                out.writeUTF(bucket.name);
+                out.writeInt(bucket.count);
+                out.writeInt(bucket.coverId);
+                out.writeLong(bucket.coverDateTaken);
+                out.writeLong(bucket.maxId);
+                out.writeLong(bucket.maxDateModified);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "cannot save media index");
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "cannot save media index", e);
+            tmp.delete();
+        } finally {
+            Utils.closeSilently(out);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2026, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.gallery3d.data;
+
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+// MediaSnapshot is a columnar copy of the metadata of all the items of a media
+// set: one primitive array per field, indexed by the item's ordinal in
+// enumerateTotalMediaItems() order.
+//
+// The clusterings read their input from here instead of enumerating the set
+// and copying the fields into their own objects. The snapshot of a set is
+// shared until the set's data version changes, so showing the same set
+// clustered in another way doesn't enumerate it again.
+//
+// The arrays must not be modified.
+class MediaSnapshot {
+    private static final WeakHashMap<MediaSet, MediaSnapshot> sSnapshots =
+            new WeakHashMap<>();
+
+    private final long mDataVersion;
+    private int[] mDateTakenOrder;
+
+    final int count;
+    final Path[] paths;
+    final long[] dateTaken;
+    final double[] lat;
+    final double[] lng;
+    final long[] size;
+    final int[] mediaType;
+    // Null for items without tags.
+    final String[][] tags;
+
+    private MediaSnapshot(long dataVersion, int count, Path[] paths,
+            long[] dateTaken, double[] lat, double[] lng, long[] size,
+            int[] mediaType, String[][] tags) {
+        mDataVersion = dataVersion;
+        this.count = count;
+        this.paths = paths;
+        this.dateTaken = dateTaken;
+        this.lat = lat;
+        this.lng = lng;
+        this.size = size;
+        this.mediaType = mediaType;
+        this.tags = tags;
+    }
+
+    // Returns the snapshot of the set at its current data version. The set
+    // should have been reloaded.
+    static MediaSnapshot of(MediaSet set) {
+        long version = set.getDataVersion();
+        synchronized (sSnapshots) {
+            MediaSnapshot snapshot = sSnapshots.get(set);
+            if (snapshot != null && snapshot.mDataVersion == version
+                    && version != MediaObject.INVALID_DATA_VERSION) {
+                return snapshot;
+            }
+        }
+        // Enumerating can take a while, don't block the other sets.
+        MediaSnapshot snapshot = capture(set, version);
+        synchronized (sSnapshots) {
+            sSnapshots.put(set, snapshot);
+        }
+        return snapshot;
+    }
+
+    private static MediaSnapshot capture(MediaSet set, long version) {
+        final Builder builder = new Builder(set.getTotalMediaItemCount());
+        set.enumerateTotalMediaItems(builder::add);
+        return builder.build(version);
+    }
+
+    // Returns the ordinals of the items sorted by date taken, latest first,
+    // the same order as DataManager.sDateTakenComparator. Items taken at the
+    // same time keep their order.
+    synchronized int[] getDateTakenOrder() {
+        if (mDateTakenOrder == null) {
+            mDateTakenOrder = sortByDate(dateTaken, count);
+        }
+        return mDateTakenOrder;
+    }
+
+    // The set is usually a few albums each sorted by date, so this merges the
+    // sorted runs it finds instead of sorting from scratch.
+    private static int[] sortByDate(long[] dates, int n) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        int[] runs = new int[n + 1];
+        int runCount = n == 0 ? 0 : 1;
+        for (int i = 1; i < n; i++) {
+            if (dates[i] > dates[i - 1]) runs[runCount++] = i;
+        }
+        if (runCount <= 1) return order;
+        runs[runCount] = n;
+
+        int[] buffer = new int[n];
+        while (runCount > 1) {
+            int merged = 0;
+            for (int r = 0; r < runCount; r += 2) {
+                int lo = runs[r];
+                int mid = runs[Math.min(r + 1, runCount)];
+                int hi = runs[Math.min(r + 2, runCount)];
+                int a = lo;
+                int b = mid;
+                for (int k = lo; k < hi; k++) {
+                    if (b >= hi || (a < mid && dates[order[a]] >= dates[order[b]])) {
+                        buffer[k] = order[a++];
+                    } else {
+                        buffer[k] = order[b++];
+                    }
+                }
+                runs[merged++] = lo;
+            }
+            runs[merged] = n;
+            runCount = merged;
+            int[] tmp = order;
+            order = buffer;
+            buffer = tmp;
+        }
+        return order;
+    }
+
+    private static class Builder {
+        private final double[] mLatLng = new double[2];
+        private int mCount;
+        private Path[] mPaths;
+        private long[] mDateTaken;
+        private double[] mLat;
+        private double[] mLng;
+        private long[] mSize;
+        private int[] mMediaType;
+        private String[][] mTags;
+
+        Builder(int capacity) {
+            capacity = Math.max(16, capacity);
+            mPaths = new Path[capacity];
+            mDateTaken = new long[capacity];
+            mLat = new double[capacity];
+            mLng = new double[capacity];
+            mSize = new long[capacity];
+            mMediaType = new int[capacity];
+            mTags = new String[capacity][];
+        }
+
+        // The ordinal is the count of items added before, which is the index
+        // given by enumerateTotalMediaItems().
+        void add(int index, MediaItem item) {
+            if (mCount == mPaths.length) grow();
+            int i = mCount++;
+            mPaths[i] = item.getPath();
+            mDateTaken[i] = item.getDateInMs();
+            item.getLatLong(mLatLng);
+            mLat[i] = mLatLng[0];
+            mLng[i] = mLatLng[1];
+            mSize[i] = item.getSize();
+            mMediaType[i] = item.getMediaType();
+            String[] tags = item.getTags();
+            mTags[i] = (tags == null || tags.length == 0) ? null : tags;
+        }
+
+        private void grow() {
+            int capacity = mPaths.length * 2;
+            mPaths = Arrays.copyOf(mPaths, capacity);
+            mDateTaken = Arrays.copyOf(mDateTaken, capacity);
+            mLat = Arrays.copyOf(mLat, capacity);
+            mLng = Arrays.copyOf(mLng, capacity);
+            mSize = Arrays.copyOf(mSize, capacity);
+            mMediaType = Arrays.copyOf(mMediaType, capacity);
+            mTags = Arrays.copyOf(mTags, capacity);
+        }
+
+        MediaSnapshot build(long version) {
+            return new MediaSnapshot(version, mCount, mPaths, mDateTaken, mLat,
+                    mLng, mSize, mMediaType, mTags);
+        }
+    }
+}
@@ -21,34 +21,78 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 
 import com.android.gallery3d.common.Utils;
-import com.android.gallery3d.util.IdentityCache;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
+// Paths are interned: there is one Path object for each path string, so they
+// can be compared by identity. The tree of paths is safe to use from any
+// thread without locking. A Path is only kept alive by its users and its
+// children, the parent references its children weakly.
 public class Path {
     private static final String TAG = "Path";
-    private static Path sRoot = new Path(null, "ROOT");
+    private static volatile Path sRoot = new Path(null, "ROOT");
+
+    // Weak references to children whose Path has been collected, to be
+    // removed from the parent's mChildren.
+    private static final ReferenceQueue<Path> sCollectedChildren =
+            new ReferenceQueue<>();
+
+    // A field updater can only be made for the raw ConcurrentHashMap class.
+    // mChildren is only ever set to a ConcurrentHashMap<String, ChildRef>.
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Path, ConcurrentHashMap>
+            sChildrenUpdater = AtomicReferenceFieldUpdater.newUpdater(
+                    Path.class, ConcurrentHashMap.class, "mChildren");
 
     private final Path mParent;
     private final String mSegment;
-    private WeakReference<MediaObject> mObject;
-    private IdentityCache<String, Path> mChildren;
+    private volatile WeakReference<MediaObject> mObject;
+    private volatile ConcurrentHashMap<String, ChildRef> mChildren;
+
+    // A 128-bit fingerprint of toString(). It's derived from the parent's
+    // fingerprint and this segment, so it never builds the path string.
+    // Computed lazily; racing threads compute the same value.
+    private long mFingerprintHigh;
+    private long mFingerprintLow;
+    private volatile boolean mHasFingerprint;
+
+    // The map is kept rather than the parent Path, so a queued reference
+    // doesn't keep the parent alive.
+    private static class ChildRef extends WeakReference<Path> {
+        final ConcurrentHashMap<String, ChildRef> mSiblings;
+        final String mSegment;
+
+        ChildRef(ConcurrentHashMap<String, ChildRef> siblings, Path child) {
+            super(child, sCollectedChildren);
+            mSiblings = siblings;
+            mSegment = child.mSegment;
+        }
+    }
 
     private Path(Path parent, String segment) {
         mParent = parent;
         mSegment = segment;
     }
 
+    // Walks the string in place, looking up each segment as it's found.
     public static Path fromString(String s) {
-        synchronized (Path.class) {
-            String[] segments = split(s);
-            Path current = sRoot;
-            for (String segment : segments) {
-                current = current.getChild(segment);
-            }
-            return current;
+        int n = s.length();
+        Path current = sRoot;
+        if (n == 0) return current;
+        if (s.charAt(0) != '/') {
+            throw new RuntimeException("malformed path:" + s);
+        }
+        int i = 1;
+        while (i < n) {
+            int j = findSegmentEnd(s, i, n);
+            current = current.getChild(s.substring(i, j));
+            i = j + 1;
         }
+        return current;
     }
 
     public static String[] split(String s) {
@@ -60,17 +104,7 @@ public class Path {
         ArrayList<String> segments = new ArrayList<>();
         int i = 1;
         while (i < n) {
-            int brace = 0;
-            int j;
-            for (j = i; j < n; j++) {
-                char c = s.charAt(j);
-                if (c == '{') ++brace;
-                else if (c == '}') --brace;
-                else if (brace == 0 && c == '/') break;
-            }
-            if (brace != 0) {
-                throw new RuntimeException("unbalanced brace in path:" + s);
-            }
+            int j = findSegmentEnd(s, i, n);
             segments.add(s.substring(i, j));
             i = j + 1;
         }
@@ -79,6 +113,22 @@ public class Path {
         return result;
     }
 
+    // Returns the index of the '/' ending the segment starting at i, or n.
+    private static int findSegmentEnd(String s, int i, int n) {
+        int brace = 0;
+        int j;
+        for (j = i; j < n; j++) {
+            char c = s.charAt(j);
+            if (c == '{') ++brace;
+            else if (c == '}') --brace;
+            else if (brace == 0 && c == '/') break;
+        }
+        if (brace != 0) {
+            throw new RuntimeException("unbalanced brace in path:" + s);
+        }
+        return j;
+    }
+
     // Splits a string to an array of strings.
     // For example, "{foo,bar,baz}" -> {"foo","bar","baz"}.
     public static String[] splitSequence(String s) {
@@ -110,9 +160,7 @@ public class Path {
 
     // Below are for testing/debugging only
     static void clearAll() {
-        synchronized (Path.class) {
-            sRoot = new Path(null, "");
-        }
+        sRoot = new Path(null, "");
     }
 
     static void dumpAll() {
@@ -120,50 +168,69 @@ public class Path {
     }
 
     static void dumpAll(Path p, String prefix1, String prefix2) {
-        synchronized (Path.class) {
-            MediaObject obj = p.getObject();
-            Log.d(TAG, prefix1 + p.mSegment + ":" + (obj == null ? "null" : obj.getClass().getSimpleName()));
-            if (p.mChildren != null) {
-                ArrayList<String> childrenKeys = p.mChildren.keys();
-                int i = 0, n = childrenKeys.size();
-                for (String key : childrenKeys) {
-                    Path child = p.mChildren.get(key);
-                    if (child == null) {
-                        ++i;
-                        continue;
-                    }
-                    Log.d(TAG, prefix2 + "|");
-                    if (++i < n) {
-                        dumpAll(child, prefix2 + "+-- ", prefix2 + "|   ");
-                    } else {
-                        dumpAll(child, prefix2 + "+-- ", prefix2 + "    ");
-                    }
+        MediaObject obj = p.getObject();
+        Log.d(TAG, prefix1 + p.mSegment + ":" + (obj == null ? "null" : obj.getClass().getSimpleName()));
+        ConcurrentHashMap<String, ChildRef> children = p.mChildren;
+        if (children != null) {
+            ArrayList<ChildRef> refs = new ArrayList<>(children.values());
+            int i = 0, n = refs.size();
+            for (ChildRef ref : refs) {
+                Path child = ref.get();
+                if (child == null) {
+                    ++i;
+                    continue;
+                }
+                Log.d(TAG, prefix2 + "|");
+                if (++i < n) {
+                    dumpAll(child, prefix2 + "+-- ", prefix2 + "|   ");
+                } else {
+                    dumpAll(child, prefix2 + "+-- ", prefix2 + "    ");
                 }
             }
         }
     }
 
     public Path getChild(String segment) {
-        synchronized (Path.class) {
-            if (mChildren == null) {
-                mChildren = new IdentityCache<>();
-            } else {
-                Path p = mChildren.get(segment);
-                if (p != null) return p;
-            }
+        ConcurrentHashMap<String, ChildRef> children = mChildren;
+        if (children == null) {
+            sChildrenUpdater.compareAndSet(this, null,
+                    new ConcurrentHashMap<String, ChildRef>());
+            children = mChildren;
+        }
 
-            Path p = new Path(this, segment);
-            mChildren.put(segment, p);
-            return p;
+        ChildRef ref = children.get(segment);
+        Path p = (ref == null) ? null : ref.get();
+        if (p != null) return p;
+
+        // Either there's no child yet, or it has been collected. If another
+        // thread adds the same child first, use that one.
+        removeCollectedChildren();
+        Path child = new Path(this, segment);
+        ChildRef childRef = new ChildRef(children, child);
+        while (true) {
+            ref = children.putIfAbsent(segment, childRef);
+            if (ref == null) return child;
+            p = ref.get();
+            if (p != null) return p;
+            if (children.replace(segment, ref, childRef)) return child;
         }
     }
 
-    public Path getParent() {
-        synchronized (Path.class) {
-            return mParent;
+    // Only called before adding a child, since ReferenceQueue.poll() takes a
+    // global lock. Lookups of existing paths stay lock-free; the entries of
+    // collected children just stay in the maps until the next insert.
+    private static void removeCollectedChildren() {
+        ChildRef ref;
+        while ((ref = (ChildRef) sCollectedChildren.poll()) != null) {
+            // Does nothing if the entry has already been replaced.
+            ref.mSiblings.remove(ref.mSegment, ref);
         }
     }
 
+    public Path getParent() {
+        return mParent;
+    }
+
     public Path getChild(int segment) {
         return getChild(String.valueOf(segment));
     }
@@ -173,31 +240,32 @@ public class Path {
     }
 
     MediaObject getObject() {
-        synchronized (Path.class) {
-            return (mObject == null) ? null : mObject.get();
-        }
+        WeakReference<MediaObject> object = mObject;
+        return (object == null) ? null : object.get();
     }
 
     public void setObject(MediaObject object) {
-        synchronized (Path.class) {
-            Utils.assertTrue(mObject == null || mObject.get() == null);
-            mObject = new WeakReference<>(object);
-        }
+        WeakReference<MediaObject> current = mObject;
+        Utils.assertTrue(current == null || current.get() == null);
+        mObject = new WeakReference<>(object);
     }
 
     @NonNull
     @Override
-    // TODO: toString() should be more efficient, will fix it later
     public String toString() {
-        synchronized (Path.class) {
-            StringBuilder sb = new StringBuilder();
-            String[] segments = split();
-            for (String segment : segments) {
-                sb.append("/");
-                sb.append(segment);
-            }
-            return sb.toString();
+        int length = 0;
+        for (Path p = this; p.mParent != null; p = p.mParent) {
+            length += p.mSegment.length() + 1;
+        }
+        char[] chars = new char[length];
+        int end = length;
+        for (Path p = this; p.mParent != null; p = p.mParent) {
+            int n = p.mSegment.length();
+            end -= n;
+            p.mSegment.getChars(0, n, chars, end);
+            chars[--end] = '/';
         }
+        return new String(chars);
     }
 
     public boolean equalsIgnoreCase(String p) {
@@ -205,37 +273,69 @@ public class Path {
         return path.equalsIgnoreCase(p);
     }
 
+    // The tree is only ever extended and mParent and mSegment are final, so
+    // the methods below need no lock. The root is the Path without a parent.
     public String[] split() {
-        synchronized (Path.class) {
-            int n = 0;
-            for (Path p = this; p != sRoot; p = p.mParent) {
-                n++;
-            }
-            String[] segments = new String[n];
-            int i = n - 1;
-            for (Path p = this; p != sRoot; p = p.mParent) {
-                segments[i--] = p.mSegment;
-            }
-            return segments;
+        int n = 0;
+        for (Path p = this; p.mParent != null; p = p.mParent) {
+            n++;
+        }
+        String[] segments = new String[n];
+        int i = n - 1;
+        for (Path p = this; p.mParent != null; p = p.mParent) {
+            segments[i--] = p.mSegment;
         }
+        return segments;
     }
 
     public String getPrefix() {
-        if (this == sRoot) return "";
+        if (mParent == null) return "";
         return getPrefixPath().mSegment;
     }
 
     public Path getPrefixPath() {
-        synchronized (Path.class) {
-            Path current = this;
-            if (current == sRoot) {
-                throw new IllegalStateException();
-            }
-            while (current.mParent != sRoot) {
-                current = current.mParent;
-            }
-            return current;
+        Path current = this;
+        if (current.mParent == null) {
+            throw new IllegalStateException();
+        }
+        while (current.mParent.mParent != null) {
+            current = current.mParent;
+        }
+        return current;
+    }
+
+    // Returns the high 64 bits of the fingerprint of this path.
+    long getFingerprintHigh() {
+        computeFingerprint();
+        return mFingerprintHigh;
+    }
+
+    // Returns the low 64 bits of the fingerprint of this path.
+    long getFingerprintLow() {
+        computeFingerprint();
+        return mFingerprintLow;
+    }
+
+    private void computeFingerprint() {
+        if (mHasFingerprint) return;
+        long high = 0xcbf29ce484222325L;
+        long low = 0x9e3779b97f4a7c15L;
+        if (mParent != null && mParent.mParent != null) {
+            high = mParent.getFingerprintHigh();
+            low = mParent.getFingerprintLow();
+        }
+        // Two independent hashes over "/" + segment: FNV-1a and a
+        // polynomial hash with a different multiplier.
+        high = (high ^ '/') * 0x100000001b3L;
+        low = low * 0xc6a4a7935bd1e995L + '/';
+        for (int i = 0, n = mSegment.length(); i < n; i++) {
+            char c = mSegment.charAt(i);
+            high = (high ^ c) * 0x100000001b3L;
+            low = low * 0xc6a4a7935bd1e995L + c;
         }
+        mFingerprintHigh = high;
+        mFingerprintLow = low;
+        mHasFingerprint = true;
     }
 
     public String getSuffix() {
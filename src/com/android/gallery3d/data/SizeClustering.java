@@ -50,9 +50,10 @@ public class SizeClustering extends Clustering {
     @Override
     public void run(MediaSet baseSet) {
         @SuppressWarnings("unchecked") final ArrayList<Path>[] group = new ArrayList[SIZE_LEVELS.length];
-        baseSet.enumerateTotalMediaItems((index, item) -> {
+        MediaSnapshot snapshot = MediaSnapshot.of(baseSet);
+        for (int item = 0; item < snapshot.count; item++) {
             // Find the cluster this item belongs to.
-            long size = item.getSize();
+            long size = snapshot.size[item];
             int i;
             for (i = 0; i < SIZE_LEVELS.length - 1; i++) {
                 if (size < SIZE_LEVELS[i + 1]) {
@@ -65,8 +66,8 @@ public class SizeClustering extends Clustering {
                 list = new ArrayList<>();
                 group[i] = list;
             }
-            list.add(item.getPath());
-        });
+            list.add(snapshot.paths[item]);
+        }
 
         int count = 0;
         for (ArrayList<Path> paths : group) {
@@ -42,19 +42,20 @@ public class TagClustering extends Clustering {
                 new TreeMap<>();
         final ArrayList<Path> untagged = new ArrayList<>();
 
-        baseSet.enumerateTotalMediaItems((index, item) -> {
-            Path path = item.getPath();
+        MediaSnapshot snapshot = MediaSnapshot.of(baseSet);
+        for (int item = 0; item < snapshot.count; item++) {
+            Path path = snapshot.paths[item];
 
-            String[] tags = item.getTags();
-            if (tags == null || tags.length == 0) {
+            String[] tags = snapshot.tags[item];
+            if (tags == null) {
                 untagged.add(path);
-                return;
+                continue;
             }
             for (String key : tags) {
                 ArrayList<Path> list = map.computeIfAbsent(key, k -> new ArrayList<>());
                 list.add(path);
             }
-        });
+        }
 
         int m = map.size();
         mClusters = new ArrayList<>();
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2026, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.gallery3d.data;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.Bitmap;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.gallery3d.app.GalleryApp;
+import com.android.gallery3d.util.Future;
+import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
+import java.util.ArrayList;
+
+/**
+ * Generates the micro thumbnails and thumbnails of the local items that are
+ * missing from the image cache, latest first, so that they are cached before
+ * the user scrolls to them.
+ * <p>
+ * The walk only runs while the device is idle: it waits until the user has
+ * not touched the UI for a while, and it stops while the device is hot, in
+ * battery saver or low on battery. On battery it only works half of the
+ * time. It ends at the first cache flip, since from there on each thumbnail
+ * it adds would push an older one out.
+ */
+public class ThumbnailPrefetcher {
+    private static final String TAG = "ThumbnailPrefetcher";
+
+    // How long the UI must be left alone before the walk goes on.
+    private static final long UI_QUIET_MS = 3000;
+    // How often the power state is read again, and how long the walk waits
+    // before reading it again when the device is not idle enough.
+    private static final long POWER_CHECK_MS = 10000;
+    private static final long POWER_WAIT_MS = 30000;
+    private static final int MIN_BATTERY_PERCENT = 20;
+    private static final long PROGRESS_LOG_MS = 10000;
+    // Number of paths mapped to items at a time.
+    private static final int BATCH_SIZE = 32;
+
+    private static final int[] TYPES = {
+            MediaItem.TYPE_MICROTHUMBNAIL, MediaItem.TYPE_THUMBNAIL};
+
+    // Power states, from the best to the worst.
+    private static final int POWER_OK = 0;
+    private static final int POWER_THROTTLED = 1;
+    private static final int POWER_PAUSED = 2;
+
+    private final GalleryApp mApplication;
+    private final ThreadPool mThreadPool;
+    private final Object mLock = new Object();
+
+    private Future<Void> mFuture;
+    private boolean mStopped;
+    private long mLastUserActivity;
+
+    private int mPowerState;
+    private long mPowerCheckTime;
+
+    // Written by the walk, read by getProgress().
+    private final Progress mProgress = new Progress();
+    private long mLastLogTime;
+
+    /**
+     * A snapshot of the progress of the walk.
+     */
+    public static class Progress {
+        public int total;           // items in the walk
+        public int checked;         // items whose thumbnails are now cached
+        public int generated;       // thumbnails decoded and added to the cache
+        public long activeMs;       // time spent checking and decoding
+        public boolean done;        // the walk has ended
+
+        public float itemsPerSecond() {
+            return activeMs == 0 ? 0 : checked * 1000f / activeMs;
+        }
+
+        @Override
+        public String toString() {
+            return checked + "/" + total + " generated=" + generated
+                    + " active=" + activeMs + "ms rate="
+                    + String.format("%.1f", itemsPerSecond()) + "/s"
+                    + (done ? " done" : "");
+        }
+    }
+
+    // The thread pool should be a dedicated one: the walk keeps its thread
+    // for as long as it runs.
+    public ThumbnailPrefetcher(GalleryApp application, ThreadPool threadPool) {
+        mApplication = application;
+        mThreadPool = threadPool;
+    }
+
+    public void start() {
+        synchronized (mLock) {
+            if (mFuture != null) return;
+            mStopped = false;
+            // Leave the UI its first load.
+            mLastUserActivity = SystemClock.uptimeMillis();
+            mPowerCheckTime = 0;
+            mFuture = mThreadPool.submit(new Walk(), null,
+                    ThreadPool.PRIORITY_MAINTENANCE);
+        }
+    }
+
+    public void stop() {
+        Future<Void> future;
+        synchronized (mLock) {
+            future = mFuture;
+            mFuture = null;
+            mStopped = true;
+            mLock.notifyAll();
+        }
+        if (future != null) future.cancel();
+    }
+
+    /**
+     * Called when the user interacts with the UI. The walk holds off until
+     * the UI has been left alone for a while.
+     */
+    public void onUserActivity() {
+        synchronized (mLock) {
+            mLastUserActivity = SystemClock.uptimeMillis();
+        }
+    }
+
+    public Progress getProgress() {
+        Progress progress = new Progress();
+        synchronized (mProgress) {
+            progress.total = mProgress.total;
+            progress.checked = mProgress.checked;
+            progress.generated = mProgress.generated;
+            progress.activeMs = mProgress.activeMs;
+            progress.done = mProgress.done;
+        }
+        return progress;
+    }
+
+    private class Walk implements Job<Void> {
+        @Override
+        public Void run(JobContext jc) {
+            DataManager dataManager = mApplication.getDataManager();
+            MediaSet set = dataManager.getMediaSet(dataManager.getTopSetPath(
+                    DataManager.INCLUDE_LOCAL_ALL_ONLY));
+            if (set == null || !waitUntilIdle(jc)) return null;
+            set.reload();
+            MediaSnapshot snapshot = MediaSnapshot.of(set);
+            int[] order = snapshot.getDateTakenOrder();
+            synchronized (mProgress) {
+                mProgress.total = snapshot.count;
+            }
+
+            ImageCacheService cacheService = mApplication.getImageCacheService();
+            long flips = cacheService.getStats().flips;
+            ArrayList<Path> paths = new ArrayList<>(BATCH_SIZE);
+            final MediaItem[] items = new MediaItem[BATCH_SIZE];
+            for (int start = 0; start < snapshot.count; start += BATCH_SIZE) {
+                int end = Math.min(start + BATCH_SIZE, snapshot.count);
+                paths.clear();
+                for (int i = start; i < end; i++) {
+                    paths.add(snapshot.paths[order[i]]);
+                }
+                dataManager.mapMediaItems(paths,
+                        (index, item) -> items[index] = item, 0);
+
+                for (int i = 0; i < paths.size(); i++) {
+                    MediaItem item = items[i];
+                    items[i] = null;
+                    if (!waitUntilIdle(jc)) return null;
+                    if (item != null && !prefetch(item, jc)) return null;
+                    if (cacheService.getStats().flips != flips) {
+                        Log.d(TAG, "cache full, stop");
+                        finish();
+                        return null;
+                    }
+                }
+            }
+            finish();
+            return null;
+        }
+    }
+
+    // Generates the missing thumbnails of the item. Returns false if the walk
+    // is cancelled.
+    private boolean prefetch(MediaItem item, JobContext jc) {
+        long start = SystemClock.uptimeMillis();
+        int generated = 0;
+        for (int type : TYPES) {
+            Job<Bitmap> job = item.requestImage(type);
+            // Only the local items are in the image cache.
+            if (!(job instanceof ImageCacheRequest)) break;
+            ImageCacheRequest request = (ImageCacheRequest) job;
+            if (request.isCached()) continue;
+            Bitmap bitmap = request.run(jc);
+            if (jc.isCancelled()) return false;
+            if (bitmap != null) {
+                bitmap.recycle();
+                generated++;
+            }
+        }
+        long elapsed = SystemClock.uptimeMillis() - start;
+
+        long now = SystemClock.uptimeMillis();
+        boolean log = false;
+        synchronized (mProgress) {
+            mProgress.checked++;
+            mProgress.generated += generated;
+            mProgress.activeMs += elapsed;
+            if (now - mLastLogTime >= PROGRESS_LOG_MS) {
+                mLastLogTime = now;
+                log = true;
+            }
+        }
+        if (log) Log.d(TAG, "progress " + getProgress());
+
+        // On battery, rest as long as we worked.
+        if (generated > 0 && getPowerState() == POWER_THROTTLED) {
+            return sleep(elapsed);
+        }
+        return true;
+    }
+
+    private void finish() {
+        synchronized (mProgress) {
+            mProgress.done = true;
+        }
+        Log.d(TAG, "finished " + getProgress());
+    }
+
+    // Waits until the UI is quiet and the power state allows the walk to go
+    // on. Returns false if the walk is cancelled.
+    private boolean waitUntilIdle(JobContext jc) {
+        while (!jc.isCancelled()) {
+            long delay;
+            synchronized (mLock) {
+                if (mStopped) return false;
+                delay = mLastUserActivity + UI_QUIET_MS
+                        - SystemClock.uptimeMillis();
+            }
+            if (delay <= 0) {
+                if (getPowerState() != POWER_PAUSED) return true;
+                delay = POWER_WAIT_MS;
+            }
+            if (!sleep(delay)) return false;
+        }
+        return false;
+    }
+
+    // Returns false if the walk is stopped while sleeping.
+    private boolean sleep(long delayMs) {
+        synchronized (mLock) {
+            long end = SystemClock.uptimeMillis() + delayMs;
+            long now;
+            while (!mStopped && (now = SystemClock.uptimeMillis()) < end) {
+                try {
+                    mLock.wait(end - now);
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "ignore interrupt", e);
+                }
+            }
+            return !mStopped;
+        }
+    }
+
+    // The power state is only read every POWER_CHECK_MS, since it takes a
+    // couple of binder calls.
+    private int getPowerState() {
+        long now = SystemClock.uptimeMillis();
+        if (mPowerCheckTime != 0 && now - mPowerCheckTime < POWER_CHECK_MS) {
+            return mPowerState;
+        }
+        mPowerCheckTime = now;
+        mPowerState = readPowerState(mApplication.getAndroidContext());
+        return mPowerState;
+    }
+
+    private static int readPowerState(Context context) {
+        PowerManager pm = (PowerManager) context.getSystemService(
+                Context.POWER_SERVICE);
+        if (pm != null) {
+            if (pm.isPowerSaveMode()) return POWER_PAUSED;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                int thermal = pm.getCurrentThermalStatus();
+                if (thermal >= PowerManager.THERMAL_STATUS_MODERATE) {
+                    return POWER_PAUSED;
+                }
+                if (thermal == PowerManager.THERMAL_STATUS_LIGHT) {
+                    return POWER_THROTTLED;
+                }
+            }
+        }
+
+        // The battery state is a sticky broadcast, no receiver is needed.
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) return POWER_OK;
+        if (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            return POWER_OK;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level >= 0 && scale > 0
+                && level * 100 / scale < MIN_BATTERY_PERCENT) {
+            return POWER_PAUSED;
+        }
+        return POWER_THROTTLED;
+    }
+}
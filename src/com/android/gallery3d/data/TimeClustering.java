@@ -24,8 +24,16 @@ import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.GalleryUtils;
 
 import java.util.ArrayList;
-import java.util.Comparator;
-
+import java.util.Arrays;
+
+// TimeClustering groups the items of a media set into clusters of items taken
+// close together in time and place.
+//
+// The items are kept in a timeline sorted by date, latest first, and each
+// cluster is a contiguous range of the timeline. The same instance can be run
+// again when the media set changes: the new timeline is compared with the
+// previous one, and only the clusters around the items that changed are
+// computed again. The clusters before and after them are reused.
 public class TimeClustering extends Clustering {
     @SuppressWarnings("unused")
     private static final String TAG = "TimeClustering";
@@ -59,14 +67,14 @@ public class TimeClustering extends Clustering {
     // Make the cluster split time of a large cluster half that of a regular
     // cluster.
     private static final int PARTITION_CLUSTER_SPLIT_TIME_FACTOR = 2;
-    private static final Comparator<SmallItem> sDateComparator =
-            new DateComparator();
     // Initially put 2 items in the same cluster as long as they are within
     // 3 cluster frequencies of each other.
     private static final int CLUSTER_SPLIT_MULTIPLIER = 3;
+    private static final String MMDDYY_FORMAT = "MMddyy";
+
     private final Context mContext;
-    private final ArrayList<Cluster> mClusters;
-    private String[] mNames;
+    private Timeline mTimeline = new Timeline(0);
+    private ArrayList<Cluster> mClusters = new ArrayList<>();
     private Cluster mCurrCluster;
     private long mClusterSplitTime =
             (MIN_CLUSTER_SPLIT_TIME_IN_MS + MAX_CLUSTER_SPLIT_TIME_IN_MS) / 2;
@@ -75,55 +83,112 @@ public class TimeClustering extends Clustering {
     private int mMinClusterSize = (MIN_MIN_CLUSTER_SIZE + MAX_MIN_CLUSTER_SIZE) / 2;
     private int mMaxClusterSize = (MIN_MAX_CLUSTER_SIZE + MAX_MAX_CLUSTER_SIZE) / 2;
 
+    // The items of the media set, one entry per array index.
+    private static class Timeline {
+        int count;
+        Path[] paths;
+        long[] dates;
+        double[] lats;
+        double[] lngs;
+        int[] types;
+
+        Timeline(int capacity) {
+            paths = new Path[capacity];
+            dates = new long[capacity];
+            lats = new double[capacity];
+            lngs = new double[capacity];
+            types = new int[capacity];
+        }
+
+        void add(Path path, long date, double lat, double lng, int type) {
+            if (count == paths.length) {
+                int capacity = Math.max(16, count * 2);
+                paths = Arrays.copyOf(paths, capacity);
+                dates = Arrays.copyOf(dates, capacity);
+                lats = Arrays.copyOf(lats, capacity);
+                lngs = Arrays.copyOf(lngs, capacity);
+                types = Arrays.copyOf(types, capacity);
+            }
+            paths[count] = path;
+            dates[count] = date;
+            lats[count] = lat;
+            lngs[count] = lng;
+            types[count] = type;
+            count++;
+        }
+
+        boolean sameItem(int i, Timeline other, int j) {
+            return paths[i] == other.paths[j]
+                    && dates[i] == other.dates[j]
+                    && lats[i] == other.lats[j]
+                    && lngs[i] == other.lngs[j]
+                    && types[i] == other.types[j];
+        }
+    }
+
+    // A cluster is the range [start, end) of the timeline.
+    private static class Cluster {
+        int start;
+        int end;
+        int photoCount;
+        int videoCount;
+        boolean geographicallySeparatedFromPrevCluster;
+        // True if nothing after this cluster can change the clusters before
+        // it: the previous cluster was big enough not to be merged with.
+        // Clustering can be resumed from such a cluster.
+        boolean stableStart;
+        // Null until the counts and the name are computed.
+        String name;
+
+        Cluster(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        int size() {
+            return end - start;
+        }
+    }
+
     public TimeClustering(Context context) {
         mContext = context;
-        mClusters = new ArrayList<>();
-        mCurrCluster = new Cluster();
     }
 
-    // Returns true if a, b are sufficiently geographically separated.
-    private static boolean isGeographicallySeparated(SmallItem itemA, SmallItem itemB) {
-        if (!GalleryUtils.isValidLocation(itemA.lat, itemA.lng)
-                || !GalleryUtils.isValidLocation(itemB.lat, itemB.lng)) {
+    // Returns true if items a, b are sufficiently geographically separated.
+    private boolean isGeographicallySeparated(int a, int b) {
+        Timeline t = mTimeline;
+        if (!GalleryUtils.isValidLocation(t.lats[a], t.lngs[a])
+                || !GalleryUtils.isValidLocation(t.lats[b], t.lngs[b])) {
             return false;
         }
 
         double distance = GalleryUtils.fastDistanceMeters(
-                Math.toRadians(itemA.lat),
-                Math.toRadians(itemA.lng),
-                Math.toRadians(itemB.lat),
-                Math.toRadians(itemB.lng));
+                Math.toRadians(t.lats[a]),
+                Math.toRadians(t.lngs[a]),
+                Math.toRadians(t.lats[b]),
+                Math.toRadians(t.lngs[b]));
         return (GalleryUtils.toMile(distance) > GEOGRAPHIC_DISTANCE_CUTOFF_IN_MILES);
     }
 
-    // Returns the time interval between the two items in milliseconds.
-    private static long timeDistance(SmallItem a, SmallItem b) {
-        return Math.abs(a.dateInMs - b.dateInMs);
+    // Returns the time interval between items a and b in milliseconds.
+    private long timeDistance(int a, int b) {
+        return Math.abs(mTimeline.dates[a] - mTimeline.dates[b]);
     }
 
     @Override
     public void run(MediaSet baseSet) {
-        final double[] latLng = new double[2];
-
-        final ArrayList<SmallItem> items = new ArrayList<>();
-        baseSet.enumerateTotalMediaItems((index, item) -> {
-            SmallItem smallItem = new SmallItem();
-            smallItem.path = item.getPath();
-            smallItem.mediaType = item.getMediaType();
-            smallItem.dateInMs = item.getDateInMs();
-            item.getLatLong(latLng);
-            smallItem.lat = latLng[0];
-            smallItem.lng = latLng[1];
-            items.add(smallItem);
-        });
-
-        items.sort(sDateComparator);
-
-        int n = items.size();
+        Timeline old = mTimeline;
+        ArrayList<Cluster> oldClusters = mClusters;
+        long oldSplitTime = mClusterSplitTime;
+        int oldMinSize = mMinClusterSize;
+        int oldMaxSize = mMaxClusterSize;
+
+        Timeline timeline = loadTimeline(baseSet);
+        int n = timeline.count;
         long minTime = 0;
         long maxTime = 0;
         for (int i = 0; i < n; i++) {
-            long t = items.get(i).dateInMs;
+            long t = timeline.dates[i];
             if (t == 0) continue;
             if (minTime == 0) {
                 minTime = maxTime = t;
@@ -134,18 +199,125 @@ public class TimeClustering extends Clustering {
         }
 
         setTimeRange(maxTime - minTime, n);
+        mTimeline = timeline;
+        mClusters = new ArrayList<>();
+        if (n == 0) return;
+
+        // The previous clusters can only be reused if they were made with
+        // the same parameters. For a large media set the parameters are
+        // clamped and rarely change.
+        boolean reusable = !oldClusters.isEmpty()
+                && oldSplitTime == mClusterSplitTime
+                && oldMinSize == mMinClusterSize
+                && oldMaxSize == mMaxClusterSize;
+
+        int resumeStart = 0;
+        int suffixStart = n;
+        int shift = n - old.count;
+        if (reusable) {
+            // Items [0, first) are the same in both timelines, and so are
+            // the last suffixLength items.
+            int limit = Math.min(n, old.count);
+            int first = 0;
+            while (first < limit && timeline.sameItem(first, old, first)) first++;
+            if (first == n && n == old.count) {
+                mClusters = oldClusters;
+                return;
+            }
+            int suffixLength = 0;
+            while (suffixLength < limit - first && timeline.sameItem(
+                    n - 1 - suffixLength, old, old.count - 1 - suffixLength)) {
+                suffixLength++;
+            }
+            suffixStart = n - suffixLength;
+
+            // Keep the clusters before the last stable cluster that starts
+            // before the first changed item. The first cluster always starts
+            // a clustering, so it counts as stable.
+            int k = oldClusters.size() - 1;
+            while (k > 0 && !(oldClusters.get(k).stableStart
+                    && oldClusters.get(k).start < first)) {
+                k--;
+            }
+            for (int i = 0; i < k; i++) {
+                mClusters.add(oldClusters.get(i));
+            }
+            resumeStart = oldClusters.get(k).start;
+        }
 
-        for (int i = 0; i < n; i++) {
-            compute(items.get(i));
+        mCurrCluster = new Cluster(resumeStart, resumeStart + 1);
+        mCurrCluster.stableStart = true;
+        mCurrCluster.geographicallySeparatedFromPrevCluster =
+                resumeStart > 0 && isGeographicallySeparated(resumeStart - 1, resumeStart);
+
+        boolean converged = false;
+        for (int i = resumeStart + 1; i < n; i++) {
+            if (!compute(i) || i - 1 < suffixStart) continue;
+
+            // From here on the new items are the same as the old ones. If the
+            // previous run also started a stable cluster at this item, the
+            // rest of the clusters are the same too, only shifted.
+            int j = findStableCluster(oldClusters, i - shift);
+            if (j >= 0) {
+                for (int m = oldClusters.size(); j < m; j++) {
+                    Cluster cluster = oldClusters.get(j);
+                    cluster.start += shift;
+                    cluster.end += shift;
+                    mClusters.add(cluster);
+                }
+                converged = true;
+                break;
+            }
         }
+        if (!converged) computeLastCluster();
+        mCurrCluster = null;
+
+        for (int i = 0, m = mClusters.size(); i < m; i++) {
+            Cluster cluster = mClusters.get(i);
+            if (cluster.name != null) continue;
+            for (int j = cluster.start; j < cluster.end; j++) {
+                if (timeline.types[j] == MediaObject.MEDIA_TYPE_IMAGE) {
+                    cluster.photoCount++;
+                } else if (timeline.types[j] == MediaObject.MEDIA_TYPE_VIDEO) {
+                    cluster.videoCount++;
+                }
+            }
+            cluster.name = generateCaption(cluster);
+        }
+    }
 
-        compute(null);
+    // Reads the items of the base set into a timeline sorted by date, latest
+    // first. Items with the same date keep the order of the base set.
+    private static Timeline loadTimeline(MediaSet baseSet) {
+        MediaSnapshot snapshot = MediaSnapshot.of(baseSet);
+        int[] order = snapshot.getDateTakenOrder();
+        int n = snapshot.count;
+        Timeline timeline = new Timeline(n);
+        for (int i = 0; i < n; i++) {
+            int j = order[i];
+            timeline.add(snapshot.paths[j], snapshot.dateTaken[j],
+                    snapshot.lat[j], snapshot.lng[j], snapshot.mediaType[j]);
+        }
+        return timeline;
+    }
 
-        int m = mClusters.size();
-        mNames = new String[m];
-        for (int i = 0; i < m; i++) {
-            mNames[i] = mClusters.get(i).generateCaption(mContext);
+    // Returns the index of the cluster starting at the given item if it is a
+    // stable one, or -1.
+    private static int findStableCluster(ArrayList<Cluster> clusters, int start) {
+        int lo = 0;
+        int hi = clusters.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Cluster cluster = clusters.get(mid);
+            if (cluster.start < start) {
+                lo = mid + 1;
+            } else if (cluster.start > start) {
+                hi = mid - 1;
+            } else {
+                return cluster.stableStart ? mid : -1;
+            }
         }
+        return -1;
     }
 
     @Override
@@ -155,17 +327,17 @@ public class TimeClustering extends Clustering {
 
     @Override
     public ArrayList<Path> getCluster(int index) {
-        ArrayList<SmallItem> items = mClusters.get(index).getItems();
-        ArrayList<Path> result = new ArrayList<>(items.size());
-        for (int i = 0, n = items.size(); i < n; i++) {
-            result.add(items.get(i).path);
+        Cluster cluster = mClusters.get(index);
+        ArrayList<Path> result = new ArrayList<>(cluster.size());
+        for (int i = cluster.start; i < cluster.end; i++) {
+            result.add(mTimeline.paths[i]);
         }
         return result;
     }
 
     @Override
     public String getClusterName(int index) {
-        return mNames[index];
+        return mClusters.get(index).name;
     }
 
     private void setTimeRange(long timeRange, int numItems) {
@@ -185,110 +357,93 @@ public class TimeClustering extends Clustering {
 
     @Override
     public int getClusterImageCount(int index) {
-        // TODO Auto-generated method stub
-        return mClusters.get(index).mPhotoCount;
-
+        return mClusters.get(index).photoCount;
     }
 
     @Override
     public int getClusterVideoCount(int index) {
-        // TODO Auto-generated method stub
-        return mClusters.get(index).mVideoCount;
+        return mClusters.get(index).videoCount;
     }
 
-    private void compute(SmallItem currentItem) {
-        if (currentItem != null) {
-            int numClusters = mClusters.size();
-            int numCurrClusterItems = mCurrCluster.size();
-            boolean geographicallySeparateItem = false;
-            boolean itemAddedToCurrentCluster = false;
-
-            // Determine if this item should go in the current cluster or be the
-            // start of a new cluster.
-            if (numCurrClusterItems == 0) {
-                mCurrCluster.addItem(currentItem);
-            } else {
-                SmallItem prevItem = mCurrCluster.getLastItem();
-                if (isGeographicallySeparated(prevItem, currentItem)) {
-                    mClusters.add(mCurrCluster);
-                    geographicallySeparateItem = true;
-                } else if (numCurrClusterItems > mMaxClusterSize) {
-                    splitAndAddCurrentCluster();
-                } else if (timeDistance(prevItem, currentItem) < mClusterSplitTime) {
-                    mCurrCluster.addItem(currentItem);
-                    itemAddedToCurrentCluster = true;
-                } else if (numClusters > 0 && numCurrClusterItems < mMinClusterSize
-                        && !mCurrCluster.mGeographicallySeparatedFromPrevCluster) {
-                    mergeAndAddCurrentCluster();
-                } else {
-                    mClusters.add(mCurrCluster);
-                }
+    // Adds item i, which follows the current cluster. Returns true if the
+    // item starts a new stable cluster.
+    private boolean compute(int i) {
+        Cluster curr = mCurrCluster;
+        int numClusters = mClusters.size();
+        int numCurrClusterItems = curr.size();
+        int prevItem = curr.end - 1;
+        boolean geographicallySeparateItem = false;
+
+        // Determine if this item should go in the current cluster or be the
+        // start of a new cluster.
+        if (isGeographicallySeparated(prevItem, i)) {
+            mClusters.add(curr);
+            geographicallySeparateItem = true;
+        } else if (numCurrClusterItems > mMaxClusterSize) {
+            splitAndAddCurrentCluster();
+        } else if (timeDistance(prevItem, i) < mClusterSplitTime) {
+            curr.end++;
+            return false;
+        } else if (numClusters > 0 && numCurrClusterItems < mMinClusterSize
+                && !curr.geographicallySeparatedFromPrevCluster) {
+            mergeAndAddCurrentCluster();
+        } else {
+            mClusters.add(curr);
+        }
 
-                // Creating a new cluster and adding the current item to it.
-                if (!itemAddedToCurrentCluster) {
-                    mCurrCluster = new Cluster();
-                    if (geographicallySeparateItem) {
-                        mCurrCluster.mGeographicallySeparatedFromPrevCluster = true;
-                    }
-                    mCurrCluster.addItem(currentItem);
-                }
-            }
+        // Creating a new cluster and adding the current item to it.
+        mCurrCluster = new Cluster(i, i + 1);
+        mCurrCluster.geographicallySeparatedFromPrevCluster = geographicallySeparateItem;
+        mCurrCluster.stableStart =
+                mClusters.get(mClusters.size() - 1).size() >= mMinClusterSize;
+        return mCurrCluster.stableStart;
+    }
+
+    private void computeLastCluster() {
+        int numClusters = mClusters.size();
+        int numCurrClusterItems = mCurrCluster.size();
+
+        // The last cluster may potentially be too big or too small.
+        if (numCurrClusterItems > mMaxClusterSize) {
+            splitAndAddCurrentCluster();
+        } else if (numClusters > 0 && numCurrClusterItems < mMinClusterSize
+                && !mCurrCluster.geographicallySeparatedFromPrevCluster) {
+            mergeAndAddCurrentCluster();
         } else {
-            if (mCurrCluster.size() > 0) {
-                int numClusters = mClusters.size();
-                int numCurrClusterItems = mCurrCluster.size();
-
-                // The last cluster may potentially be too big or too small.
-                if (numCurrClusterItems > mMaxClusterSize) {
-                    splitAndAddCurrentCluster();
-                } else if (numClusters > 0 && numCurrClusterItems < mMinClusterSize
-                        && !mCurrCluster.mGeographicallySeparatedFromPrevCluster) {
-                    mergeAndAddCurrentCluster();
-                } else {
-                    mClusters.add(mCurrCluster);
-                }
-                mCurrCluster = new Cluster();
-            }
+            mClusters.add(mCurrCluster);
         }
     }
 
     private void splitAndAddCurrentCluster() {
-        ArrayList<SmallItem> currClusterItems = mCurrCluster.getItems();
-        int numCurrClusterItems = mCurrCluster.size();
+        Cluster curr = mCurrCluster;
         int secondPartitionStartIndex = getPartitionIndexForCurrentCluster();
         if (secondPartitionStartIndex != -1) {
-            Cluster partitionedCluster = new Cluster();
-            for (int j = 0; j < secondPartitionStartIndex; j++) {
-                partitionedCluster.addItem(currClusterItems.get(j));
-            }
-            mClusters.add(partitionedCluster);
-            partitionedCluster = new Cluster();
-            for (int j = secondPartitionStartIndex; j < numCurrClusterItems; j++) {
-                partitionedCluster.addItem(currClusterItems.get(j));
-            }
+            int split = curr.start + secondPartitionStartIndex;
+            Cluster partitionedCluster = new Cluster(curr.start, split);
+            partitionedCluster.geographicallySeparatedFromPrevCluster =
+                    curr.geographicallySeparatedFromPrevCluster;
+            partitionedCluster.stableStart = curr.stableStart;
             mClusters.add(partitionedCluster);
+            mClusters.add(new Cluster(split, curr.end));
         } else {
-            mClusters.add(mCurrCluster);
+            mClusters.add(curr);
         }
     }
 
     private int getPartitionIndexForCurrentCluster() {
         int partitionIndex = -1;
         float largestChange = MIN_PARTITION_CHANGE_FACTOR;
-        ArrayList<SmallItem> currClusterItems = mCurrCluster.getItems();
+        long[] dates = mTimeline.dates;
+        int start = mCurrCluster.start;
         int numCurrClusterItems = mCurrCluster.size();
         int minClusterSize = mMinClusterSize;
 
         // Could be slightly more efficient here but this code seems cleaner.
         if (numCurrClusterItems > minClusterSize + 1) {
             for (int i = minClusterSize; i < numCurrClusterItems - minClusterSize; i++) {
-                SmallItem prevItem = currClusterItems.get(i - 1);
-                SmallItem currItem = currClusterItems.get(i);
-                SmallItem nextItem = currClusterItems.get(i + 1);
-
-                long timeNext = nextItem.dateInMs;
-                long timeCurr = currItem.dateInMs;
-                long timePrev = prevItem.dateInMs;
+                long timeNext = dates[start + i + 1];
+                long timeCurr = dates[start + i];
+                long timePrev = dates[start + i - 1];
 
                 if (timeNext == 0 || timeCurr == 0 || timePrev == 0) continue;
 
@@ -297,10 +452,10 @@ public class TimeClustering extends Clustering {
 
                 float change = Math.max(diff1 / (diff2 + 0.01f), diff2 / (diff1 + 0.01f));
                 if (change > largestChange) {
-                    if (timeDistance(currItem, prevItem) > mLargeClusterSplitTime) {
+                    if (diff2 > mLargeClusterSplitTime) {
                         partitionIndex = i;
                         largestChange = change;
-                    } else if (timeDistance(nextItem, currItem) > mLargeClusterSplitTime) {
+                    } else if (diff1 > mLargeClusterSplitTime) {
                         partitionIndex = i + 1;
                         largestChange = change;
                     }
@@ -311,79 +466,21 @@ public class TimeClustering extends Clustering {
     }
 
     private void mergeAndAddCurrentCluster() {
-        int numClusters = mClusters.size();
-        Cluster prevCluster = mClusters.get(numClusters - 1);
-        ArrayList<SmallItem> currClusterItems = mCurrCluster.getItems();
-        int numCurrClusterItems = mCurrCluster.size();
+        Cluster prevCluster = mClusters.get(mClusters.size() - 1);
         if (prevCluster.size() < mMinClusterSize) {
-            for (int i = 0; i < numCurrClusterItems; i++) {
-                prevCluster.addItem(currClusterItems.get(i));
-            }
-            mClusters.set(numClusters - 1, prevCluster);
+            prevCluster.end = mCurrCluster.end;
         } else {
             mClusters.add(mCurrCluster);
         }
     }
 
-    private static class DateComparator implements Comparator<SmallItem> {
-        @Override
-        public int compare(SmallItem item1, SmallItem item2) {
-            return -Utils.compare(item1.dateInMs, item2.dateInMs);
-        }
-    }
-}
-
-class SmallItem {
-    Path path;
-    long dateInMs;
-    double lat, lng;
-    int mediaType;
-}
-
-class Cluster {
-    @SuppressWarnings("unused")
-    private static final String TAG = "Cluster";
-    private static final String MMDDYY_FORMAT = "MMddyy";
-    public int mPhotoCount = 0;
-    public int mVideoCount = 0;
-
-    // This is for TimeClustering only.
-    public boolean mGeographicallySeparatedFromPrevCluster = false;
-
-    private final ArrayList<SmallItem> mItems = new ArrayList<>();
-
-    public Cluster() {
-    }
-
-    public void addItem(SmallItem item) {
-        if (item.mediaType == MediaObject.MEDIA_TYPE_IMAGE) {
-            mPhotoCount++;
-        } else if (item.mediaType == MediaObject.MEDIA_TYPE_VIDEO) {
-            mVideoCount++;
-        }
-        mItems.add(item);
-    }
-
-    public int size() {
-        return mItems.size();
-    }
-
-    public SmallItem getLastItem() {
-        int n = mItems.size();
-        return (n == 0) ? null : mItems.get(n - 1);
-    }
-
-    public ArrayList<SmallItem> getItems() {
-        return mItems;
-    }
-
-    public String generateCaption(Context context) {
-        int n = mItems.size();
+    private String generateCaption(Cluster cluster) {
+        long[] dates = mTimeline.dates;
         long minTimestamp = 0;
         long maxTimestamp = 0;
 
-        for (int i = 0; i < n; i++) {
-            long t = mItems.get(i).dateInMs;
+        for (int i = cluster.start; i < cluster.end; i++) {
+            long t = dates[i];
             if (t == 0) continue;
             if (minTimestamp == 0) {
                 minTimestamp = maxTimestamp = t;
@@ -403,7 +500,7 @@ class Cluster {
         if (minDay.substring(4).equals(maxDay.substring(4))) {
             // The items are from the same year - show at least as
             // much granularity as abbrev_all allows.
-            caption = DateUtils.formatDateRange(context, minTimestamp,
+            caption = DateUtils.formatDateRange(mContext, minTimestamp,
                     maxTimestamp, DateUtils.FORMAT_ABBREV_ALL);
 
             // Get a more granular date range string if the min and
@@ -414,16 +511,16 @@ class Cluster {
                 // Contains the year only if the date does not
                 // correspond to the current year.
                 String dateRangeWithOptionalYear = DateUtils.formatDateTime(
-                        context, minTimestamp, flags);
+                        mContext, minTimestamp, flags);
                 String dateRangeWithYear = DateUtils.formatDateTime(
-                        context, minTimestamp, flags | DateUtils.FORMAT_SHOW_YEAR);
+                        mContext, minTimestamp, flags | DateUtils.FORMAT_SHOW_YEAR);
                 if (!dateRangeWithOptionalYear.equals(dateRangeWithYear)) {
                     // This means both dates are from the same year
                     // - show the time.
                     // Not enough room to display the time range.
                     // Pick the mid-point.
                     long midTimestamp = (minTimestamp + maxTimestamp) / 2;
-                    caption = DateUtils.formatDateRange(context, midTimestamp,
+                    caption = DateUtils.formatDateRange(mContext, midTimestamp,
                             midTimestamp, DateUtils.FORMAT_SHOW_TIME | flags);
                 }
             }
@@ -432,7 +529,7 @@ class Cluster {
             // month and year.
             int flags = DateUtils.FORMAT_NO_MONTH_DAY
                     | DateUtils.FORMAT_ABBREV_MONTH | DateUtils.FORMAT_SHOW_DATE;
-            caption = DateUtils.formatDateRange(context, minTimestamp,
+            caption = DateUtils.formatDateRange(mContext, minTimestamp,
                     maxTimestamp, flags);
         }
 
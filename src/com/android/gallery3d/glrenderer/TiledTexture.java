@@ -27,6 +27,7 @@ import android.graphics.RectF;
 
 import com.android.gallery3d.ui.GLRoot;
 import com.android.gallery3d.ui.GLRoot.OnGLIdleListener;
+import com.android.photos.data.GalleryBitmapPool;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -227,7 +228,10 @@ public class TiledTexture implements Texture {
         }
     }
 
+    // The upload bitmap comes from and goes back to the shared bitmap pool,
+    // since the sliding windows prepare and free it on every resume/pause.
     public static void freeResources() {
+        GalleryBitmapPool.getInstance().put(sUploadBitmap);
         sUploadBitmap = null;
         sCanvas = null;
         sBitmapPaint = null;
@@ -235,7 +239,12 @@ public class TiledTexture implements Texture {
     }
 
     public static void prepareResources() {
-        sUploadBitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Config.ARGB_8888);
+        sUploadBitmap = GalleryBitmapPool.getInstance().get(TILE_SIZE, TILE_SIZE);
+        if (sUploadBitmap == null) {
+            sUploadBitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Config.ARGB_8888);
+        } else {
+            sUploadBitmap.eraseColor(Color.TRANSPARENT);
+        }
         sCanvas = new Canvas(sUploadBitmap);
         sBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
         sBitmapPaint.setXfermode(new PorterDuffXfermode(Mode.SRC));
@@ -139,6 +139,12 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
         return slotIndex >= mActiveStart && slotIndex < mActiveEnd;
     }
 
+    // Slots on screen are loaded before the ones around them.
+    private int getJobPriority(int slotIndex) {
+        return isActiveSlot(slotIndex)
+                ? ThreadPool.PRIORITY_VISIBLE : ThreadPool.PRIORITY_PREFETCH;
+    }
+
     private void setContentWindow(int contentStart, int contentEnd) {
         if (contentStart == mContentStart && contentEnd == mContentEnd) return;
 
@@ -435,7 +441,7 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
         @Override
         protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l) {
             return mThreadPool.submit(mMediaItem.requestImage(
-                    MediaItem.TYPE_MICROTHUMBNAIL), l);
+                    MediaItem.TYPE_MICROTHUMBNAIL), l, getJobPriority(mSlotIndex));
         }
 
         @Override
@@ -499,7 +505,8 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
         @Override
         protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l) {
             return mThreadPool.submit(mLabelMaker.requestLabel(
-                    mTitle, String.valueOf(mTotalCount), mSourceType), l);
+                    mTitle, String.valueOf(mTotalCount), mSourceType), l,
+                    getJobPriority(mSlotIndex));
         }
 
         @Override
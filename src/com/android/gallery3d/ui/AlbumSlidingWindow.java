@@ -36,6 +36,7 @@ import com.android.gallery3d.glrenderer.TiledTexture;
 import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.FutureListener;
 import com.android.gallery3d.util.JobLimiter;
+import com.android.gallery3d.util.ThreadPool;
 
 public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
     @SuppressWarnings("unused")
@@ -163,6 +164,12 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         return slotIndex >= mActiveStart && slotIndex < mActiveEnd;
     }
 
+    // Slots on screen are loaded before the ones around them.
+    private int getJobPriority(int slotIndex) {
+        return isActiveSlot(slotIndex)
+                ? ThreadPool.PRIORITY_VISIBLE : ThreadPool.PRIORITY_PREFETCH;
+    }
+
     private void setContentWindow(int contentStart, int contentEnd) {
         if (contentStart == mContentStart && contentEnd == mContentEnd)
             return;
@@ -429,7 +436,8 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         @Override
         protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l) {
             return mThreadPool.submit(
-                    mItem.requestImage(MediaItem.TYPE_MICROTHUMBNAIL), this);
+                    mItem.requestImage(MediaItem.TYPE_MICROTHUMBNAIL), this,
+                    getJobPriority(mSlotIndex));
         }
 
         @Override
@@ -521,7 +529,8 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
 
         @Override
         protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l) {
-            return mThreadPool.submit(mLabelMaker.requestLabel(mTitle), this);
+            return mThreadPool.submit(mLabelMaker.requestLabel(mTitle), this,
+                    getJobPriority(mSlotIndex));
         }
 
         @Override
@@ -31,6 +31,7 @@ import com.android.gallery3d.glrenderer.TiledTexture;
 import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.FutureListener;
 import com.android.gallery3d.util.JobLimiter;
+import com.android.gallery3d.util.ThreadPool;
 
 public class TimeLineSlidingWindow implements TimeLineDataLoader.DataListener {
     @SuppressWarnings("unused")
@@ -112,6 +113,12 @@ public class TimeLineSlidingWindow implements TimeLineDataLoader.DataListener {
         return slotIndex >= mActiveStart && slotIndex < mActiveEnd;
     }
 
+    // Slots on screen are loaded before the ones around them.
+    private int getJobPriority(int slotIndex) {
+        return isActiveSlot(slotIndex)
+                ? ThreadPool.PRIORITY_VISIBLE : ThreadPool.PRIORITY_PREFETCH;
+    }
+
     private void setContentWindow(int contentStart, int contentEnd) {
         if (contentStart == mContentStart && contentEnd == mContentEnd) return;
 
@@ -307,11 +314,13 @@ public class TimeLineSlidingWindow implements TimeLineDataLoader.DataListener {
         protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l) {
             if (mItem.getMediaType() != MediaObject.MEDIA_TYPE_TIMELINE_TITLE) {
                 return mThreadPool.submit(
-                        mItem.requestImage(MediaItem.TYPE_MICROTHUMBNAIL), this);
+                        mItem.requestImage(MediaItem.TYPE_MICROTHUMBNAIL), this,
+                        getJobPriority(mSlotIndex));
             } else if (mItem.getMediaType() == MediaObject.MEDIA_TYPE_TIMELINE_TITLE) {
                 return mThreadPool.submit(
                         ((TimeLineTitleMediaItem) mItem).requestTitle(
-                                MediaItem.TYPE_MICROTHUMBNAIL, mTitleMaker), this);
+                                MediaItem.TYPE_MICROTHUMBNAIL, mTitleMaker), this,
+                        getJobPriority(mSlotIndex));
             }
             return null;
         }
@@ -16,15 +16,19 @@
 
 package com.android.gallery3d.util;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
 
-// Limit the number of concurrent jobs that has been submitted into a ThreadPool
+// Limit the number of concurrent jobs that has been submitted into a ThreadPool.
+// Jobs waiting for a slot are started in ThreadPool priority order (see
+// ThreadPool.PRIORITY_*), and cancelled jobs are removed from the wait list
+// right away.
 @SuppressWarnings("rawtypes")
 public class JobLimiter implements FutureListener {
     private static final String TAG = "JobLimiter";
@@ -36,7 +40,9 @@ public class JobLimiter implements FutureListener {
     private static final int STATE_DONE = 1;
     private static final int STATE_CANCELLED = 2;
 
-    private final LinkedList<JobWrapper<?>> mJobs = new LinkedList<>();
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<JobWrapper<?>>[] mJobs =
+            new ArrayDeque[ThreadPool.PRIORITY_COUNT];
     private final ThreadPool mPool;
     private int mLimit;
 
@@ -46,10 +52,20 @@ public class JobLimiter implements FutureListener {
         private Future<T> mDelegate;
         private FutureListener<T> mListener;
         private T mResult;
-
-        public JobWrapper(Job<T> job, FutureListener<T> listener) {
+        private final JobLimiter mLimiter;
+        private final int mPriority;
+        private final Class<?> mJobClass;
+        // Only set when JobMetrics are enabled.
+        private final long mSubmitTime;
+
+        public JobWrapper(JobLimiter limiter, Job<T> job,
+                FutureListener<T> listener, int priority) {
+            mLimiter = limiter;
             mJob = job;
             mListener = listener;
+            mPriority = priority;
+            mJobClass = job.getClass();
+            mSubmitTime = JobMetrics.isEnabled() ? SystemClock.uptimeMillis() : 0;
         }
 
         public synchronized void setFuture(Future<T> future) {
@@ -60,20 +76,26 @@ public class JobLimiter implements FutureListener {
         @Override
         public void cancel() {
             FutureListener<T> listener = null;
+            Future<T> delegate = null;
+            boolean waiting = false;
             synchronized (this) {
                 if (mState != STATE_DONE) {
                     listener = mListener;
                     mJob = null;
                     mListener = null;
-                    if (mDelegate != null) {
-                        mDelegate.cancel();
-                        mDelegate = null;
-                    }
+                    delegate = mDelegate;
+                    mDelegate = null;
+                    waiting = (delegate == null && mState == STATE_INIT);
                 }
                 mState = STATE_CANCELLED;
                 mResult = null;
                 notifyAll();
             }
+            // Call out without holding our lock: cancelling the delegate may
+            // call back into the limiter, which calls isCancelled() on jobs
+            // while holding its own lock.
+            if (delegate != null) delegate.cancel();
+            if (waiting) mLimiter.remove(this);
             if (listener != null) listener.onFutureDone(this);
         }
 
@@ -133,22 +155,57 @@ public class JobLimiter implements FutureListener {
     public JobLimiter(ThreadPool pool, int limit) {
         mPool = Utils.checkNotNull(pool);
         mLimit = limit;
+        for (int i = 0; i < ThreadPool.PRIORITY_COUNT; i++) {
+            mJobs[i] = new ArrayDeque<>();
+        }
+    }
+
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
+        return submit(job, listener, ThreadPool.PRIORITY_BACKGROUND);
     }
 
-    public synchronized <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
-        JobWrapper<T> future = new JobWrapper<>(Utils.checkNotNull(job), listener);
-        mJobs.addLast(future);
+    // Same as above, with the given ThreadPool.PRIORITY_* value.
+    public synchronized <T> Future<T> submit(Job<T> job,
+            FutureListener<T> listener, int priority) {
+        Utils.assertTrue(priority >= 0 && priority < ThreadPool.PRIORITY_COUNT);
+        JobWrapper<T> future = new JobWrapper<>(
+                this, Utils.checkNotNull(job), listener, priority);
+        mJobs[priority].addLast(future);
         submitTasksIfAllowed();
         return future;
     }
 
+    private synchronized void remove(JobWrapper<?> wrapper) {
+        if (mJobs[wrapper.mPriority].remove(wrapper)
+                && JobMetrics.isEnabled()) {
+            JobMetrics.recordCancelledBeforeStart(wrapper.mJobClass);
+        }
+    }
+
+    // Returns the next job to start, following the same order as ThreadPool:
+    // by priority, LIFO in the VISIBLE and PREFETCH bands, FIFO otherwise.
+    private JobWrapper<?> nextJob() {
+        for (int i = 0; i < ThreadPool.PRIORITY_COUNT; i++) {
+            ArrayDeque<JobWrapper<?>> jobs = mJobs[i];
+            if (jobs.isEmpty()) continue;
+            return i <= ThreadPool.PRIORITY_PREFETCH
+                    ? jobs.removeLast() : jobs.removeFirst();
+        }
+        return null;
+    }
+
     @SuppressWarnings({"rawtypes", "unchecked"})
     private void submitTasksIfAllowed() {
-        while (mLimit > 0 && !mJobs.isEmpty()) {
-            JobWrapper wrapper = mJobs.removeFirst();
+        JobWrapper wrapper;
+        while (mLimit > 0 && (wrapper = nextJob()) != null) {
             if (!wrapper.isCancelled()) {
                 --mLimit;
-                wrapper.setFuture(mPool.submit(wrapper, this));
+                if (wrapper.mSubmitTime != 0 && JobMetrics.isEnabled()) {
+                    JobMetrics.recordLimiterWait(wrapper.mJobClass,
+                            SystemClock.uptimeMillis() - wrapper.mSubmitTime);
+                }
+                wrapper.setFuture(mPool.submit(
+                        wrapper, this, wrapper.mPriority, wrapper.mJobClass));
             }
         }
     }
@@ -16,49 +16,53 @@
 
 package com.android.photos.data;
 
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.Point;
-import android.util.Pools.Pool;
-import android.util.Pools.SynchronizedPool;
+import android.util.SparseArray;
 
-import com.android.photos.data.SparseArrayBitmapPool.Node;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
- * Pool allowing the efficient reuse of bitmaps in order to avoid long
- * garbage collection pauses.
+ * Process-wide pool allowing the efficient reuse of bitmaps in order to avoid
+ * long garbage collection pauses. The decoders, the tiles of large images
+ * and the labels all share it, and so share its budget.
  */
-public class GalleryBitmapPool {
-
-    private static final int CAPACITY_BYTES = 20971520;
-
-    // We found that Gallery uses bitmaps that are either square (for example,
-    // tiles of large images or square thumbnails), match one of the common
-    // photo aspect ratios (4x3, 3x2, or 16x9), or, less commonly, are of some
-    // other aspect ratio. Taking advantage of this information, we use 3
-    // SparseArrayBitmapPool instances to back the GalleryBitmapPool, which affords
-    // O(1) lookups for square bitmaps, and average-case - but *not* asymptotically -
-    // O(1) lookups for common photo aspect ratios and other miscellaneous aspect
-    // ratios. Beware of the pathological case where there are many bitmaps added
-    // to the pool with different non-square aspect ratios but the same width, as
-    // performance will degrade and the average case lookup will approach
-    // O(# of different aspect ratios).
-    private static final int POOL_INDEX_NONE = -1;
-    private static final int POOL_INDEX_SQUARE = 0;
-    private static final int POOL_INDEX_PHOTO = 1;
-    private static final int POOL_INDEX_MISC = 2;
-
-    private static final Point[] COMMON_PHOTO_ASPECT_RATIOS =
-            {new Point(4, 3), new Point(3, 2), new Point(16, 9)};
-    private static final GalleryBitmapPool sInstance = new GalleryBitmapPool(CAPACITY_BYTES);
+public class GalleryBitmapPool implements ComponentCallbacks2 {
+
+    private static final int MAX_CAPACITY_BYTES = 20971520;
+
+    // Bitmaps are pooled by the size of their allocation rather than by their
+    // dimensions: since KitKat a mutable bitmap can be reconfigured to any
+    // dimensions that fit its allocation, so a 512x384 tile can come back as
+    // a 384x384 one. The classes are 4 steps per power of two (4, 5, 6, 7,
+    // 8, 10, 12, 14, 16, ... bytes), so a bitmap is never more than a quarter
+    // larger than the class it is filed under.
+    //
+    // A request looks in the smallest class whose bitmaps are all large
+    // enough, then in the next one, so it wastes at most about half of the
+    // allocation it gets.
+    private static final int CLASS_STEPS = 2;
+    private static final int CLASSES_SEARCHED = 2;
+
+    private static final GalleryBitmapPool sInstance = new GalleryBitmapPool(
+            (int) Math.min(MAX_CAPACITY_BYTES, Runtime.getRuntime().maxMemory() / 8));
+
     private final int mCapacityBytes;
-    private final SparseArrayBitmapPool[] mPools;
-    private final Pool<Node> mSharedNodePool = new SynchronizedPool<>(128);
+    private final SparseArray<ArrayDeque<Bitmap>> mClasses = new SparseArray<>();
+    // All the pooled bitmaps, oldest first, for eviction, with their size
+    // when added: a bitmap recycled since then reports a size of 0.
+    private final LinkedHashMap<Bitmap, Integer> mBitmaps = new LinkedHashMap<>();
+    private int mSizeBytes;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
 
     private GalleryBitmapPool(int capacityBytes) {
-        mPools = new SparseArrayBitmapPool[3];
-        mPools[POOL_INDEX_SQUARE] = new SparseArrayBitmapPool(capacityBytes / 3, mSharedNodePool);
-        mPools[POOL_INDEX_PHOTO] = new SparseArrayBitmapPool(capacityBytes / 3, mSharedNodePool);
-        mPools[POOL_INDEX_MISC] = new SparseArrayBitmapPool(capacityBytes / 3, mSharedNodePool);
         mCapacityBytes = capacityBytes;
     }
 
@@ -66,95 +70,159 @@ public class GalleryBitmapPool {
         return sInstance;
     }
 
-    private SparseArrayBitmapPool getPoolForDimensions(int width, int height) {
-        int index = getPoolIndexForDimensions(width, height);
-        if (index == POOL_INDEX_NONE) {
-            return null;
-        } else {
-            return mPools[index];
-        }
+    // Returns the smallest class whose bitmaps all hold at least the given
+    // number of bytes.
+    private static int classOf(int bytes) {
+        if (bytes <= (1 << CLASS_STEPS)) return 0;
+        int shift = 31 - Integer.numberOfLeadingZeros(bytes - 1) - CLASS_STEPS;
+        int mantissa = ((bytes - 1) >> shift) + 1;
+        return (shift << CLASS_STEPS) + mantissa - (1 << CLASS_STEPS);
     }
 
-    private int getPoolIndexForDimensions(int width, int height) {
-        if (width <= 0 || height <= 0) {
-            return POOL_INDEX_NONE;
-        }
-        if (width == height) {
-            return POOL_INDEX_SQUARE;
-        }
-        int min, max;
-        if (width > height) {
-            min = height;
-            max = width;
-        } else {
-            min = width;
-            max = height;
-        }
-        for (Point ar : COMMON_PHOTO_ASPECT_RATIOS) {
-            if (min * ar.x == max * ar.y) {
-                return POOL_INDEX_PHOTO;
-            }
-        }
-        return POOL_INDEX_MISC;
+    // Returns the largest class whose size is at most the given allocation.
+    private static int floorClassOf(int allocationBytes) {
+        return classOf(allocationBytes + 1) - 1;
     }
 
     /**
      * @return Capacity of the pool in bytes.
      */
-    public synchronized int getCapacity() {
+    public int getCapacity() {
         return mCapacityBytes;
     }
 
     /**
-     * @return Approximate total size in bytes of the bitmaps stored in the pool.
+     * @return Total size in bytes of the bitmaps stored in the pool.
      */
-    public int getSize() {
-        // Note that this only returns an approximate size, since multiple threads
-        // might be getting and putting Bitmaps from the pool and we lock at the
-        // sub-pool level to avoid unnecessary blocking.
-        int total = 0;
-        for (SparseArrayBitmapPool p : mPools) {
-            total += p.getSize();
-        }
-        return total;
+    public synchronized int getSize() {
+        return mSizeBytes;
+    }
+
+    /**
+     * @return Number of get() calls that returned a pooled bitmap.
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return Number of get() calls that found no bitmap to reuse.
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return Number of bitmaps dropped to stay within the budget.
+     */
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
     }
 
     /**
      * @return Bitmap from the pool with the desired height/width or null if none available.
+     *         Its content is undefined.
      */
     public Bitmap get(int width, int height) {
-        SparseArrayBitmapPool pool = getPoolForDimensions(width, height);
-        if (pool == null) {
-            return null;
-        } else {
-            return pool.get(width, height);
+        if (width <= 0 || height <= 0) return null;
+        long bytes = (long) width * height * 4;
+        if (bytes > mCapacityBytes) return null;
+
+        Bitmap b = take((int) bytes);
+        if (b == null) return null;
+        if (b.getWidth() != width || b.getHeight() != height
+                || b.getConfig() != Bitmap.Config.ARGB_8888) {
+            b.reconfigure(width, height, Bitmap.Config.ARGB_8888);
         }
+        return b;
+    }
+
+    private synchronized Bitmap take(int bytes) {
+        int first = classOf(bytes);
+        for (int c = first; c < first + CLASSES_SEARCHED; c++) {
+            ArrayDeque<Bitmap> bitmaps = mClasses.get(c);
+            if (bitmaps == null) continue;
+            // The most recently added bitmap is the most likely to be warm.
+            Bitmap b;
+            while ((b = bitmaps.pollFirst()) != null) {
+                mSizeBytes -= mBitmaps.remove(b);
+                // A caller may have recycled a bitmap after giving it back.
+                if (b.isRecycled()) continue;
+                mHitCount++;
+                return b;
+            }
+        }
+        mMissCount++;
+        return null;
     }
 
     /**
-     * Adds the given bitmap to the pool.
+     * Adds the given bitmap to the pool. Only mutable ARGB_8888 bitmaps are
+     * pooled. The bitmap must not be used by the caller afterwards.
      *
      * @return Whether the bitmap was added to the pool.
      */
-    public boolean put(Bitmap b) {
-        if (b == null || b.getConfig() != Bitmap.Config.ARGB_8888) {
+    public synchronized boolean put(Bitmap b) {
+        if (b == null || b.isRecycled() || !b.isMutable()
+                || b.getConfig() != Bitmap.Config.ARGB_8888) {
             return false;
         }
-        SparseArrayBitmapPool pool = getPoolForDimensions(b.getWidth(), b.getHeight());
-        if (pool == null) {
-            b.recycle();
-            return false;
-        } else {
-            return pool.put(b);
+        int bytes = b.getAllocationByteCount();
+        // A single large bitmap shouldn't flush everything else.
+        if (bytes > mCapacityBytes / 2 || mBitmaps.containsKey(b)) return false;
+
+        trimToSize(mCapacityBytes - bytes);
+        int c = floorClassOf(bytes);
+        ArrayDeque<Bitmap> bitmaps = mClasses.get(c);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            mClasses.put(c, bitmaps);
+        }
+        bitmaps.addFirst(b);
+        mBitmaps.put(b, bytes);
+        mSizeBytes += bytes;
+        return true;
+    }
+
+    // Drops the oldest bitmaps until the pool holds at most the given size.
+    // The bitmaps are not recycled: a caller may still hold on to one it gave
+    // back, and the GC frees them anyway.
+    private void trimToSize(int sizeBytes) {
+        Iterator<Map.Entry<Bitmap, Integer>> it = mBitmaps.entrySet().iterator();
+        while (mSizeBytes > sizeBytes && it.hasNext()) {
+            Map.Entry<Bitmap, Integer> entry = it.next();
+            it.remove();
+            int bytes = entry.getValue();
+            mClasses.get(floorClassOf(bytes)).removeLastOccurrence(entry.getKey());
+            mSizeBytes -= bytes;
+            mEvictionCount++;
         }
     }
 
     /**
-     * Empty the pool, recycling all the bitmaps currently in it.
+     * Empty the pool.
      */
-    public void clear() {
-        for (SparseArrayBitmapPool p : mPools) {
-            p.clear();
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    @Override
+    public synchronized void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(0);
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mCapacityBytes / 4);
+        } else if (level == TRIM_MEMORY_RUNNING_MODERATE) {
+            trimToSize(mCapacityBytes / 2);
         }
     }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
 }
@@ -0,0 +1,19 @@
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+
+# Instrumentation tests of Gallery2. Run with:
+#   adb shell am instrument -w com.android.gallery3d.tests/android.test.InstrumentationTestRunner
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_JAVA_LIBRARIES := android.test.runner android.test.base
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_PACKAGE_NAME := Gallery2Tests
+LOCAL_PRIVATE_PLATFORM_APIS := true
+LOCAL_CERTIFICATE := platform
+
+LOCAL_INSTRUMENTATION_FOR := Gallery2
+
+include $(BUILD_PACKAGE)
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2026, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.gallery3d.data;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+
+import com.android.gallery3d.util.ThreadPool.Job;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+// Checks that LocalMergeAlbum returns the merged items in order after its
+// sources change, including changes past the first page of a source that
+// land exactly at one of its marks.
+public class LocalMergeAlbumTest extends TestCase {
+    private static final int SOURCE_SIZE = 2000;
+    private static int sSerial;
+
+    private static final Comparator<MediaItem> COMPARATOR =
+            (a, b) -> Long.compare(((TestItem) a).mKey, ((TestItem) b).mKey);
+
+    private String mPrefix;
+    private TestSet mEven;
+    private TestSet mOdd;
+    private LocalMergeAlbum mAlbum;
+
+    private static class TestItem extends MediaItem {
+        final long mKey;
+
+        TestItem(Path path, long key) {
+            super(path, nextVersionNumber());
+            mKey = key;
+        }
+
+        @Override
+        public Job<Bitmap> requestImage(int type) {
+            return null;
+        }
+
+        @Override
+        public Job<BitmapRegionDecoder> requestLargeImage() {
+            return null;
+        }
+
+        @Override
+        public String getMimeType() {
+            return "image/jpeg";
+        }
+
+        @Override
+        public int getWidth() {
+            return 0;
+        }
+
+        @Override
+        public int getHeight() {
+            return 0;
+        }
+    }
+
+    // A source holding its items in a list, sorted by key.
+    private class TestSet extends MediaSet {
+        final ArrayList<TestItem> mItems = new ArrayList<>();
+        private long mVersion = nextVersionNumber();
+
+        TestSet(String name) {
+            super(Path.fromString(mPrefix + "/" + name), nextVersionNumber());
+        }
+
+        void insert(int index, long key) {
+            mItems.add(index, new TestItem(
+                    Path.fromString(mPrefix + "/item/" + key), key));
+            mVersion = nextVersionNumber();
+        }
+
+        void remove(int index) {
+            mItems.remove(index);
+            mVersion = nextVersionNumber();
+        }
+
+        @Override
+        public int getMediaItemCount() {
+            return mItems.size();
+        }
+
+        @Override
+        public ArrayList<MediaItem> getMediaItem(int start, int count) {
+            ArrayList<MediaItem> result = new ArrayList<>();
+            for (int i = start, n = Math.min(mItems.size(), start + count);
+                    i < n; i++) {
+                result.add(mItems.get(i));
+            }
+            return result;
+        }
+
+        @Override
+        public String getName() {
+            return "test";
+        }
+
+        @Override
+        public long reload() {
+            return mVersion;
+        }
+    }
+
+    @Override
+    protected void setUp() {
+        mPrefix = "/test/merge/" + (sSerial++);
+        // Keys interleave: the even source has 0, 20, 40..., the odd one
+        // 10, 30, 50..., so the merge takes from each in turn.
+        mEven = new TestSet("even");
+        mOdd = new TestSet("odd");
+        for (int i = 0; i < SOURCE_SIZE; i++) {
+            mEven.insert(i, 20L * i);
+            mOdd.insert(i, 20L * i + 10);
+        }
+        mAlbum = new LocalMergeAlbum(Path.fromString(mPrefix + "/merged"),
+                COMPARATOR, new MediaSet[] {mEven, mOdd}, 0);
+        // Leaves marks at 1024, 2048 and 3072.
+        mAlbum.getMediaItem(0, 2 * SOURCE_SIZE);
+    }
+
+    private void assertMerged() {
+        mAlbum.reload();
+        ArrayList<Long> expected = new ArrayList<>();
+        for (TestItem item : mEven.mItems) expected.add(item.mKey);
+        for (TestItem item : mOdd.mItems) expected.add(item.mKey);
+        Collections.sort(expected);
+        assertEquals(expected.size(), mAlbum.getMediaItemCount());
+        // From the end, so each position is read from the nearest mark
+        // before any newer mark covers it.
+        for (int start = expected.size() - 1; start >= 0; start--) {
+            ArrayList<MediaItem> items = mAlbum.getMediaItem(start, 1);
+            assertEquals(1, items.size());
+            assertEquals("position " + start, (long) expected.get(start),
+                    ((TestItem) items.get(0)).mKey);
+        }
+    }
+
+    public void testUnchanged() {
+        assertMerged();
+    }
+
+    // The mark at 3072 has taken 1536 items of each source. An item inserted
+    // at 1536 in the odd source is still before the mark in that source, but
+    // it sorts after the next item of the even source, so the mark must not
+    // be kept.
+    public void testInsertAtMark() {
+        mOdd.insert(1536, 30725);
+        assertMerged();
+    }
+
+    public void testDeleteAtMark() {
+        mEven.remove(1536);
+        assertMerged();
+    }
+
+    public void testInsertInFirstPage() {
+        mEven.insert(100, 1995);
+        assertMerged();
+    }
+
+    public void testDeleteBeforeMark() {
+        mOdd.remove(1200);
+        assertMerged();
+    }
+}